@@ -48,7 +48,7 @@ async function apiRequest(endpoint, method = 'GET', body = null) {
         const data = await response.json();
         
         if (!response.ok) {
-            throw new Error(data.message || 'Request failed');
+            throw new Error(data.error || data.message || 'Request failed');
         }
         
         return data;
@@ -78,6 +78,7 @@ async function loadConfiguration() {
         document.getElementById('verificationCode').checked = config.verificationCode || false;
         document.getElementById('privacyMode').checked = config.privacyMode || false;
         document.getElementById('dohSwitch').checked = config.dohSwitch || false;
+        document.getElementById('dutyCyclePolling').checked = config.dutyCyclePolling || false;
         
         showNotification('✅ Configuration loaded successfully', 'success');
     } catch (error) {
@@ -105,7 +106,8 @@ async function saveConfiguration(event) {
             fallbackSms: document.getElementById('fallbackSms').checked,
             verificationCode: document.getElementById('verificationCode').checked,
             privacyMode: document.getElementById('privacyMode').checked,
-            dohSwitch: document.getElementById('dohSwitch').checked
+            dohSwitch: document.getElementById('dohSwitch').checked,
+            dutyCyclePolling: document.getElementById('dutyCyclePolling').checked
         };
         
         // Validate
@@ -151,6 +153,218 @@ async function loadSystemInfo() {
     }
 }
 
+// Load spam keywords and their hit counts
+async function loadBlacklist() {
+    try {
+        const blacklist = await apiRequest('/blacklist');
+        document.getElementById('blacklistKeywords').value = blacklist.keywords.join('\n');
+        const hitList = document.getElementById('blacklistHits');
+        hitList.innerHTML = '';
+        Object.keys(blacklist.hits).forEach(keyword => {
+            const item = document.createElement('div');
+            item.className = 'info-item';
+            const label = document.createElement('span');
+            label.className = 'info-label';
+            label.textContent = keyword;
+            const value = document.createElement('span');
+            value.className = 'info-value';
+            value.textContent = blacklist.hits[keyword] + ' hits';
+            item.appendChild(label);
+            item.appendChild(value);
+            hitList.appendChild(item);
+        });
+    } catch (error) {
+        console.error('Failed to load spam keywords:', error);
+    }
+}
+
+// Save spam keywords
+async function saveBlacklist(event) {
+    event.preventDefault();
+
+    const submitBtn = event.target.querySelector('button[type="submit"]');
+    setButtonLoading(submitBtn, true);
+
+    try {
+        const keywords = document.getElementById('blacklistKeywords').value.split('\n');
+        const result = await apiRequest('/blacklist', 'POST', { keywords: keywords });
+        showNotification('✅ ' + result.message, 'success');
+        loadBlacklist();
+    } catch (error) {
+        showNotification('❌ Failed to save spam keywords: ' + error.message, 'error');
+    } finally {
+        setButtonLoading(submitBtn, false);
+    }
+}
+
+// Load routing rules and their hit counts
+async function loadRules() {
+    try {
+        const rules = await apiRequest('/rules');
+        document.getElementById('rulesJson').value = JSON.stringify(rules, null, 2);
+        const stats = await apiRequest('/stats');
+        const hitList = document.getElementById('ruleHits');
+        hitList.innerHTML = '';
+        Object.keys(stats.rules.hits).forEach(rule => {
+            const item = document.createElement('div');
+            item.className = 'info-item';
+            const label = document.createElement('span');
+            label.className = 'info-label';
+            label.textContent = rule;
+            const value = document.createElement('span');
+            value.className = 'info-value';
+            value.textContent = stats.rules.hits[rule] + ' hits';
+            item.appendChild(label);
+            item.appendChild(value);
+            hitList.appendChild(item);
+        });
+    } catch (error) {
+        console.error('Failed to load rules:', error);
+    }
+}
+
+// Save routing rules
+async function saveRules(event) {
+    event.preventDefault();
+
+    const submitBtn = event.target.querySelector('button[type="submit"]');
+    let rules;
+    try {
+        rules = JSON.parse(document.getElementById('rulesJson').value || '[]');
+    } catch (error) {
+        showNotification('⚠️ Rules are not valid JSON: ' + error.message, 'warning');
+        return;
+    }
+    setButtonLoading(submitBtn, true);
+
+    try {
+        const result = await apiRequest('/rules', 'POST', rules);
+        showNotification('✅ ' + result.message, 'success');
+        loadRules();
+    } catch (error) {
+        showNotification('❌ Failed to save rules: ' + error.message, 'error');
+    } finally {
+        setButtonLoading(submitBtn, false);
+    }
+}
+
+// Load message templates; each field shows the default as its placeholder
+async function loadTemplates() {
+    try {
+        const templates = await apiRequest('/templates');
+        const fields = document.getElementById('templateFields');
+        fields.innerHTML = '';
+        Object.keys(templates).forEach(kind => {
+            const group = document.createElement('div');
+            group.className = 'form-group';
+            const label = document.createElement('label');
+            label.htmlFor = 'template_' + kind;
+            label.textContent = kind + ' (' + templates[kind].variables.map(name => '{' + name + '}').join(', ') + ')';
+            const textarea = document.createElement('textarea');
+            textarea.id = 'template_' + kind;
+            textarea.dataset.kind = kind;
+            textarea.rows = 4;
+            textarea.placeholder = templates[kind].default;
+            textarea.value = templates[kind].template || '';
+            group.appendChild(label);
+            group.appendChild(textarea);
+            fields.appendChild(group);
+        });
+    } catch (error) {
+        console.error('Failed to load templates:', error);
+    }
+}
+
+// Save message templates
+async function saveTemplates(event) {
+    event.preventDefault();
+
+    const submitBtn = event.target.querySelector('button[type="submit"]');
+    setButtonLoading(submitBtn, true);
+
+    try {
+        const templates = {};
+        document.querySelectorAll('#templateFields textarea').forEach(textarea => {
+            templates[textarea.dataset.kind] = textarea.value;
+        });
+        const result = await apiRequest('/templates', 'POST', templates);
+        showNotification('✅ ' + result.message, 'success');
+        loadTemplates();
+    } catch (error) {
+        showNotification('❌ Failed to save templates: ' + error.message, 'error');
+    } finally {
+        setButtonLoading(submitBtn, false);
+    }
+}
+
+// Load verification code recipe packs
+async function loadRecipes() {
+    const recipeList = document.getElementById('recipeList');
+    try {
+        const packs = await apiRequest('/recipes');
+        recipeList.innerHTML = '';
+        packs.forEach(pack => {
+            const item = document.createElement('div');
+            item.className = 'info-item';
+            const label = document.createElement('span');
+            label.className = 'info-label';
+            label.textContent = pack.language;
+            const value = document.createElement('span');
+            value.className = 'info-value';
+            value.textContent = pack.uploaded ? 'Uploaded' : 'Built-in';
+            item.appendChild(label);
+            item.appendChild(value);
+            if (pack.uploaded) {
+                const removeBtn = document.createElement('button');
+                removeBtn.type = 'button';
+                removeBtn.className = 'btn btn-secondary';
+                removeBtn.textContent = 'Remove';
+                removeBtn.addEventListener('click', () => removeRecipe(pack.language));
+                item.appendChild(removeBtn);
+            }
+            recipeList.appendChild(item);
+        });
+    } catch (error) {
+        console.error('Failed to load recipe packs:', error);
+    }
+}
+
+// Upload a recipe pack
+async function uploadRecipe(event) {
+    event.preventDefault();
+
+    const submitBtn = event.target.querySelector('button[type="submit"]');
+    const language = document.getElementById('recipeLanguage').value.trim().toLowerCase();
+    const file = document.getElementById('recipeFile').files[0];
+    if (!language || !file) {
+        showNotification('⚠️ Language and recipe file are required', 'warning');
+        return;
+    }
+    setButtonLoading(submitBtn, true);
+
+    try {
+        const recipe = JSON.parse(await file.text());
+        const result = await apiRequest('/recipes/' + encodeURIComponent(language), 'POST', recipe);
+        showNotification('✅ ' + result.message, 'success');
+        loadRecipes();
+    } catch (error) {
+        showNotification('❌ Failed to upload recipe pack: ' + error.message, 'error');
+    } finally {
+        setButtonLoading(submitBtn, false);
+    }
+}
+
+// Remove an uploaded recipe pack
+async function removeRecipe(language) {
+    try {
+        const result = await apiRequest('/recipes/' + encodeURIComponent(language), 'DELETE');
+        showNotification('✅ ' + result.message, 'success');
+        loadRecipes();
+    } catch (error) {
+        showNotification('❌ Failed to remove recipe pack: ' + error.message, 'error');
+    }
+}
+
 // Test connection to Telegram
 async function testConnection() {
     try {
@@ -166,6 +380,10 @@ async function testConnection() {
 // Event listeners
 configForm.addEventListener('submit', saveConfiguration);
 loadBtn.addEventListener('click', loadConfiguration);
+document.getElementById('blacklistForm').addEventListener('submit', saveBlacklist);
+document.getElementById('rulesForm').addEventListener('submit', saveRules);
+document.getElementById('templatesForm').addEventListener('submit', saveTemplates);
+document.getElementById('recipeForm').addEventListener('submit', uploadRecipe);
 refreshInfoBtn.addEventListener('click', () => {
     setButtonLoading(refreshInfoBtn, true);
     loadSystemInfo().finally(() => {
@@ -177,6 +395,10 @@ refreshInfoBtn.addEventListener('click', () => {
 document.addEventListener('DOMContentLoaded', () => {
     loadConfiguration();
     loadSystemInfo();
+    loadBlacklist();
+    loadRules();
+    loadTemplates();
+    loadRecipes();
     
     // Auto-refresh system info every 30 seconds
     setInterval(loadSystemInfo, 30000);
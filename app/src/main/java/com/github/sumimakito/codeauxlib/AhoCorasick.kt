@@ -0,0 +1,133 @@
+package com.github.sumimakito.codeauxlib
+
+import java.util.ArrayDeque
+import java.util.TreeMap
+
+/**
+ * Aho-Corasick automaton over a fixed keyword list. [scan] reports every occurrence of every
+ * keyword in a single pass over the text, so its cost does not depend on the number of keywords.
+ * Characters are compared after [fold], which lower-cases by default; keywords go through the
+ * same folding. Once built, the automaton is a set of flat arrays and scanning allocates nothing.
+ */
+open class AhoCorasick(keywords: List<String>) {
+    fun interface HitListener {
+        /**
+         * @return false to stop scanning.
+         */
+        fun onHit(keyword: Int, start: Int, end: Int): Boolean
+    }
+
+    private val lengths = IntArray(keywords.size) { keywords[it].length }
+    // Transitions of node n are edgeChars/edgeTargets[edgeStart[n] until edgeStart[n + 1]], sorted by char.
+    private val edgeStart: IntArray
+    private val edgeChars: CharArray
+    private val edgeTargets: IntArray
+    private val fail: IntArray
+    // Keywords ending at node n, including those reached through failure links.
+    private val outputStart: IntArray
+    private val outputs: IntArray
+
+    init {
+        val children = ArrayList<TreeMap<Char, Int>>()
+        val nodeOutputs = ArrayList<IntArray>()
+        children.add(TreeMap())
+        nodeOutputs.add(IntArray(0))
+        keywords.forEachIndexed { index, keyword ->
+            if (keyword.isEmpty()) {
+                return@forEachIndexed
+            }
+            var node = 0
+            for (c in keyword) {
+                val ch = fold(c)
+                var next = children[node][ch]
+                if (next == null) {
+                    next = children.size
+                    children.add(TreeMap())
+                    nodeOutputs.add(IntArray(0))
+                    children[node][ch] = next
+                }
+                node = next
+            }
+            nodeOutputs[node] = nodeOutputs[node] + index
+        }
+        fail = IntArray(children.size)
+        // Breadth-first, so the failure target of a node is always finished before the node.
+        val queue = ArrayDeque<Int>(children[0].values)
+        while (queue.isNotEmpty()) {
+            val node = queue.poll()!!
+            for ((ch, child) in children[node]) {
+                var state = fail[node]
+                while (state != 0 && children[state][ch] == null) {
+                    state = fail[state]
+                }
+                val target = children[state][ch]
+                fail[child] = if (target != null && target != child) target else 0
+                nodeOutputs[child] = nodeOutputs[child] + nodeOutputs[fail[child]]
+                queue.add(child)
+            }
+        }
+        edgeStart = IntArray(children.size + 1)
+        outputStart = IntArray(children.size + 1)
+        for (node in children.indices) {
+            edgeStart[node + 1] = edgeStart[node] + children[node].size
+            outputStart[node + 1] = outputStart[node] + nodeOutputs[node].size
+        }
+        edgeChars = CharArray(edgeStart[children.size])
+        edgeTargets = IntArray(edgeStart[children.size])
+        outputs = IntArray(outputStart[children.size])
+        for (node in children.indices) {
+            var edge = edgeStart[node]
+            for ((ch, child) in children[node]) {
+                edgeChars[edge] = ch
+                edgeTargets[edge] = child
+                ++edge
+            }
+            nodeOutputs[node].copyInto(outputs, outputStart[node])
+        }
+    }
+
+    val size: Int
+        get() = lengths.size
+
+    fun scan(text: CharSequence, listener: HitListener) {
+        var node = 0
+        for (i in text.indices) {
+            val ch = fold(text[i])
+            var next = transition(node, ch)
+            while (next < 0 && node != 0) {
+                node = fail[node]
+                next = transition(node, ch)
+            }
+            node = if (next < 0) 0 else next
+            for (output in outputStart[node] until outputStart[node + 1]) {
+                val keyword = outputs[output]
+                if (!listener.onHit(keyword, i + 1 - lengths[keyword], i + 1)) {
+                    return
+                }
+            }
+        }
+    }
+
+    /**
+     * Maps a character to the form it is compared in. Must not depend on instance state, as it
+     * is already called while the automaton is built.
+     */
+    protected open fun fold(c: Char): Char {
+        return Character.toLowerCase(c)
+    }
+
+    private fun transition(node: Int, ch: Char): Int {
+        var low = edgeStart[node]
+        var high = edgeStart[node + 1] - 1
+        while (low <= high) {
+            val middle = (low + high) ushr 1
+            val value = edgeChars[middle]
+            when {
+                value < ch -> low = middle + 1
+                value > ch -> high = middle - 1
+                else -> return edgeTargets[middle]
+            }
+        }
+        return -1
+    }
+}
@@ -0,0 +1,364 @@
+package com.github.sumimakito.codeauxlib
+
+import android.content.Context
+import android.util.Log
+import com.github.sumimakito.codeauxlib.CodeauxLibPortable.RegexRecipe
+import org.json.JSONObject
+import java.io.*
+import java.nio.charset.Charset
+import java.util.*
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+
+/**
+ * Loads the verification-code recipe packs and builds the shared [CodeauxLibPortable].
+ *
+ * A pack is one recipe JSON named after a language, e.g. `zh.json`. Packs ship in assets/codeaux
+ * and can be added or overridden by files uploaded through the web config, which are kept in
+ * filesDir/codeaux/packs. The pack of the device language is tried first, then the order given by
+ * `locale_priorities` in assets/codeaux/config.json, then any other uploaded pack.
+ *
+ * Loading runs on a background thread as soon as the process starts. Parsing and macro expansion
+ * are only done when a source changed; otherwise the expanded expressions are read back from
+ * [CACHE_NAME] and only the Patterns are compiled.
+ */
+object RecipePacks {
+    private const val TAG = "RecipePacks"
+    private const val DIRECTORY = "codeaux"
+    private const val CONFIG_NAME = "config.json"
+    private const val CACHE_NAME = "compiled.cache"
+    private const val CACHE_VERSION = 1
+    private val UTF_8 = Charset.forName("UTF-8")
+    private val LANGUAGE_PATTERN = Regex("[a-z]{2,3}")
+
+    private val executor = Executors.newSingleThreadExecutor { runnable -> Thread(runnable, "codeaux_load") }
+    private var pending: Future<CodeauxLibPortable>? = null
+    private var pendingLanguage = ""
+    private var loadMillis = 0L
+    private var loadedFromCache = false
+    private var loadedLanguages: List<String> = emptyList()
+
+    /**
+     * Starts loading in the background if it has not started yet.
+     */
+    @JvmStatic
+    @Synchronized
+    fun prepare(context: Context) {
+        val language = Locale.getDefault().language
+        if (pending != null && language == pendingLanguage) {
+            return
+        }
+        val appContext = context.applicationContext
+        pendingLanguage = language
+        pending = executor.submit<CodeauxLibPortable> { load(appContext) }
+    }
+
+    /**
+     * @return the detector, waiting for a load still in progress. A failed load is rethrown and
+     * started again on the next call.
+     */
+    @JvmStatic
+    fun get(context: Context): CodeauxLibPortable {
+        val future: Future<CodeauxLibPortable>
+        synchronized(this) {
+            prepare(context)
+            future = pending!!
+        }
+        try {
+            return future.get()
+        } catch (e: ExecutionException) {
+            synchronized(this) {
+                if (pending === future) {
+                    pending = null
+                }
+            }
+            throw RuntimeException("Failed to initialize CodeauxLib", e.cause)
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+            throw RuntimeException("Interrupted while initializing CodeauxLib", e)
+        }
+    }
+
+    /**
+     * Validates and stores an uploaded pack, then reloads.
+     *
+     * @throws IllegalArgumentException when the language code or the recipe is invalid.
+     */
+    @JvmStatic
+    fun install(context: Context, language: String, json: String) {
+        checkLanguage(language)
+        try {
+            val recipe = RegexRecipe.fromJson(JSONObject(json))
+            recipe.patterns.size
+            recipe.filteredPatterns.size
+        } catch (e: Exception) {
+            throw IllegalArgumentException("Invalid recipe: " + e.message, e)
+        }
+        val directory = userDirectory(context)
+        directory.mkdirs()
+        val temp = File(directory, "$language.json.tmp")
+        temp.writeText(json, UTF_8)
+        if (!temp.renameTo(File(directory, "$language.json"))) {
+            temp.delete()
+            throw IOException("Failed to store recipe pack $language")
+        }
+        reload(context)
+    }
+
+    /**
+     * Removes an uploaded pack; a built-in pack of the same language becomes active again.
+     *
+     * @return false when there was no uploaded pack for the language.
+     */
+    @JvmStatic
+    fun remove(context: Context, language: String): Boolean {
+        checkLanguage(language)
+        val removed = File(userDirectory(context), "$language.json").delete()
+        if (removed) {
+            reload(context)
+        }
+        return removed
+    }
+
+    /**
+     * Every known pack in the order it is tried, with where it comes from.
+     */
+    @JvmStatic
+    fun list(context: Context): List<Map<String, Any>> {
+        val sources = collectSources(context)
+        val result = ArrayList<Map<String, Any>>()
+        for (language in order(context, sources.keys)) {
+            val source = sources.getValue(language)
+            val item = LinkedHashMap<String, Any>()
+            item["language"] = language
+            item["builtIn"] = source.builtIn
+            item["uploaded"] = source.file != null
+            result.add(item)
+        }
+        return result
+    }
+
+    @JvmStatic
+    fun getStats(context: Context): Map<String, Any> {
+        val stats = LinkedHashMap<String, Any>(get(context).getStats())
+        synchronized(this) {
+            stats["loadMillis"] = loadMillis
+            stats["loadedFromCache"] = loadedFromCache
+            stats["languages"] = loadedLanguages
+        }
+        return stats
+    }
+
+    @Synchronized
+    private fun reload(context: Context) {
+        // The fingerprint only sees file sizes and second-resolution times, so do not rely on it here.
+        File(context.filesDir, "$DIRECTORY/$CACHE_NAME").delete()
+        pending = null
+        prepare(context)
+    }
+
+    private class Source(val builtIn: Boolean, val file: File?)
+
+    private fun load(context: Context): CodeauxLibPortable {
+        val start = System.currentTimeMillis()
+        val sources = collectSources(context)
+        val fingerprint = fingerprint(context, sources)
+        val cacheFile = File(context.filesDir, "$DIRECTORY/$CACHE_NAME")
+        val cached = readCache(cacheFile, fingerprint)
+        val fromCache = cached != null
+        val languages: List<String>
+        val library: CodeauxLibPortable
+        if (cached != null) {
+            languages = cached.first
+            library = cached.second
+        } else {
+            languages = order(context, sources.keys)
+            val preProcess = JSONObject(readAsset(context, CONFIG_NAME)).getJSONObject("pre_process")
+            val recipes = ArrayList<RegexRecipe>()
+            for (language in languages) {
+                val recipe = parse(context, language, sources.getValue(language))
+                if (recipe != null) {
+                    recipes.add(recipe)
+                }
+            }
+            library = CodeauxLibPortable(toList(preProcess.getJSONArray("omit")), toList(preProcess.getJSONArray("replace")), recipes)
+            writeCache(cacheFile, fingerprint, languages, library)
+        }
+        library.precompile()
+        synchronized(this) {
+            loadMillis = System.currentTimeMillis() - start
+            loadedFromCache = fromCache
+            loadedLanguages = languages
+        }
+        Log.d(TAG, "Loaded " + languages + " in " + loadMillis + "ms, from cache: " + fromCache)
+        return library
+    }
+
+    /**
+     * An uploaded pack that no longer parses is skipped in favour of the built-in one.
+     */
+    private fun parse(context: Context, language: String, source: Source): RegexRecipe? {
+        if (source.file != null) {
+            try {
+                return RegexRecipe.fromJson(JSONObject(source.file.readText(UTF_8)))
+            } catch (e: Exception) {
+                Log.e(TAG, "Ignoring uploaded recipe pack $language", e)
+            }
+        }
+        return if (source.builtIn) RegexRecipe.fromJson(JSONObject(readAsset(context, "$language.json"))) else null
+    }
+
+    private fun collectSources(context: Context): Map<String, Source> {
+        val builtIn = HashSet<String>()
+        context.assets.list(DIRECTORY)?.forEach { name ->
+            if (name.endsWith(".json") && name != CONFIG_NAME) {
+                builtIn.add(name.removeSuffix(".json"))
+            }
+        }
+        val uploaded = HashMap<String, File>()
+        userDirectory(context).listFiles()?.forEach { file ->
+            if (file.name.endsWith(".json")) {
+                uploaded[file.name.removeSuffix(".json")] = file
+            }
+        }
+        val sources = HashMap<String, Source>()
+        for (language in builtIn + uploaded.keys) {
+            sources[language] = Source(builtIn.contains(language), uploaded[language])
+        }
+        return sources
+    }
+
+    private fun order(context: Context, languages: Collection<String>): List<String> {
+        val ordered = LinkedHashSet<String>()
+        ordered.add(Locale.getDefault().language)
+        val priorities = JSONObject(readAsset(context, CONFIG_NAME)).optJSONArray("locale_priorities")
+        if (priorities != null) {
+            ordered.addAll(toList(priorities))
+        }
+        ordered.addAll(languages.sorted())
+        ordered.retainAll(languages)
+        return ArrayList(ordered)
+    }
+
+    /**
+     * Changes whenever the app is updated (new assets), the device language changes, or a pack
+     * is uploaded or removed.
+     */
+    private fun fingerprint(context: Context, sources: Map<String, Source>): String {
+        val fingerprint = StringBuilder()
+        fingerprint.append(context.packageManager.getPackageInfo(context.packageName, 0).lastUpdateTime)
+        fingerprint.append('|').append(Locale.getDefault().language)
+        for (language in sources.keys.sorted()) {
+            val file = sources.getValue(language).file
+            fingerprint.append('|').append(language)
+            if (file != null) {
+                fingerprint.append(':').append(file.length()).append(':').append(file.lastModified())
+            }
+        }
+        return fingerprint.toString()
+    }
+
+    private fun readCache(cacheFile: File, fingerprint: String): Pair<List<String>, CodeauxLibPortable>? {
+        if (!cacheFile.exists()) {
+            return null
+        }
+        try {
+            DataInputStream(BufferedInputStream(FileInputStream(cacheFile))).use { input ->
+                if (input.readInt() != CACHE_VERSION || readString(input) != fingerprint) {
+                    return null
+                }
+                val languages = readList(input)
+                val omit = readList(input)
+                val replace = readList(input)
+                val recipes = ArrayList<RegexRecipe>()
+                for (i in 0 until input.readInt()) {
+                    recipes.add(RegexRecipe.restore(readList(input), readList(input), readList(input)))
+                }
+                return Pair(languages, CodeauxLibPortable(omit, replace, recipes))
+            }
+        } catch (e: Exception) {
+            // Also covers a torn or corrupt file, whose lengths throw NegativeArraySizeException.
+            Log.e(TAG, "Failed to read the recipe cache", e)
+        } catch (e: OutOfMemoryError) {
+            Log.e(TAG, "Failed to read the recipe cache", e)
+        }
+        cacheFile.delete()
+        return null
+    }
+
+    private fun writeCache(cacheFile: File, fingerprint: String, languages: List<String>, library: CodeauxLibPortable) {
+        cacheFile.parentFile?.mkdirs()
+        val temp = File(cacheFile.path + ".tmp")
+        try {
+            DataOutputStream(BufferedOutputStream(FileOutputStream(temp))).use { output ->
+                output.writeInt(CACHE_VERSION)
+                writeString(output, fingerprint)
+                writeList(output, languages)
+                writeList(output, library.preProcessOmit)
+                writeList(output, library.preProcessReplace)
+                output.writeInt(library.recipes.size)
+                library.recipes.forEach { recipe ->
+                    writeList(output, recipe.expressions)
+                    writeList(output, recipe.filteredExpressions)
+                    writeList(output, recipe.keywords)
+                }
+            }
+            if (!temp.renameTo(cacheFile)) {
+                temp.delete()
+            }
+        } catch (e: IOException) {
+            Log.e(TAG, "Failed to write the recipe cache", e)
+            temp.delete()
+        }
+    }
+
+    // DataOutput.writeUTF is limited to 64 KB, which the pre-process expressions come close to.
+    private fun writeString(output: DataOutputStream, value: String) {
+        val bytes = value.toByteArray(UTF_8)
+        output.writeInt(bytes.size)
+        output.write(bytes)
+    }
+
+    private fun readString(input: DataInputStream): String {
+        val bytes = ByteArray(input.readInt())
+        input.readFully(bytes)
+        return String(bytes, UTF_8)
+    }
+
+    private fun writeList(output: DataOutputStream, values: List<String>) {
+        output.writeInt(values.size)
+        values.forEach { writeString(output, it) }
+    }
+
+    private fun readList(input: DataInputStream): List<String> {
+        val count = input.readInt()
+        val values = ArrayList<String>(count)
+        for (i in 0 until count) {
+            values.add(readString(input))
+        }
+        return values
+    }
+
+    private fun toList(array: org.json.JSONArray): List<String> {
+        val values = ArrayList<String>()
+        for (i in 0 until array.length()) {
+            values.add(array.getString(i))
+        }
+        return values
+    }
+
+    private fun readAsset(context: Context, name: String): String {
+        return context.assets.open("$DIRECTORY/$name").use { it.readBytes().toString(UTF_8) }
+    }
+
+    private fun userDirectory(context: Context): File {
+        return File(context.filesDir, "$DIRECTORY/packs")
+    }
+
+    private fun checkLanguage(language: String) {
+        if (!LANGUAGE_PATTERN.matches(language)) {
+            throw IllegalArgumentException("Invalid language code: $language")
+        }
+    }
+}
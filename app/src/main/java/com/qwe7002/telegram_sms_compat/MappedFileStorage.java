@@ -0,0 +1,391 @@
+package com.qwe7002.telegram_sms_compat;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Append-structured key-value file mapped into memory.
+ * <p>
+ * Layout: a 32 byte header (magic, version, generation, end offset) followed by records of
+ * {@code [int key length][int value length, -1 for a tombstone][key][value]}. A record becomes
+ * visible when the end offset in the header is advanced past it, so a torn append is ignored.
+ * Lengths and the end offset are checked against the mapping before use; the index stops at the
+ * first record that does not fit, and the next append overwrites it.
+ * The in-memory index maps each key to the position of its latest value, making reads a lookup
+ * plus one decode and writes a single append instead of a full XML rewrite.
+ * <p>
+ * Every process maps the same file, so appends by other processes show up by re-reading the
+ * end offset. Compaction writes the live records to a new file and bumps the generation in the
+ * old header, which tells other processes to reopen.
+ * <p>
+ * Lock order is the cross-process lock first, then this object's monitor.
+ */
+class MappedFileStorage implements PaperStorage {
+    private static final String TAG = "MappedFileStorage";
+    private static final int MAGIC = 0x50435046;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int OFFSET_GENERATION = 8;
+    private static final int OFFSET_END = 16;
+    private static final int INITIAL_SIZE = 64 * 1024;
+    private static final int COMPACT_MIN_BYTES = 64 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static ExecutorService compactExecutor;
+
+    private final File file;
+    private final cross_process_lock lock;
+    private final Map<String, Long> index = new HashMap<>();
+    private MappedByteBuffer buffer;
+    private long generation;
+    private int indexedOffset;
+    // End offset from the header that the index has been brought up to.
+    private long scannedEnd;
+    private int liveBytes;
+    private boolean compactScheduled = false;
+    private boolean created = false;
+    private boolean reloadUnreported = false;
+    private final Set<String> changesUnreported = new HashSet<>();
+
+    private MappedFileStorage(File file, cross_process_lock lock) {
+        this.file = file;
+        this.lock = lock;
+    }
+
+    /**
+     * Opens the book's file, importing the string values of {@code legacy} when the file is new.
+     * The legacy file is left in place so switching back to it still finds the data.
+     */
+    static MappedFileStorage open(Context context, String bookName, SharedPreferences legacy) throws IOException {
+        File file = new File(context.getFilesDir(), "paper_" + bookName + ".kv");
+        MappedFileStorage storage = new MappedFileStorage(file, cross_process_lock.get(context, "paper_" + bookName));
+        storage.lock.lock();
+        try {
+            storage.reopen();
+            if (storage.created) {
+                Map<String, String> values = new HashMap<>();
+                for (Map.Entry<String, ?> entry : legacy.getAll().entrySet()) {
+                    if (entry.getValue() instanceof String) {
+                        values.put(entry.getKey(), (String) entry.getValue());
+                    }
+                }
+                if (!values.isEmpty()) {
+                    storage.apply(values);
+                    Log.i(TAG, "open: imported " + values.size() + " keys into " + file.getName());
+                }
+            }
+        } finally {
+            storage.lock.unlock();
+        }
+        return storage;
+    }
+
+    @Override
+    public synchronized String get(String key) {
+        Long location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+        int position = (int) (location >>> 32);
+        int length = (int) (long) location;
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            bytes[i] = buffer.get(position + i);
+        }
+        return new String(bytes, UTF_8);
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        return index.containsKey(key);
+    }
+
+    @Override
+    public synchronized Set<String> keys() {
+        return new HashSet<>(index.keySet());
+    }
+
+    @Override
+    public void apply(Map<String, String> changes) {
+        lock.lock();
+        try {
+            synchronized (this) {
+                catchUp();
+                for (Map.Entry<String, String> entry : changes.entrySet()) {
+                    append(entry.getKey(), entry.getValue());
+                }
+                buffer.putLong(OFFSET_END, indexedOffset);
+                scannedEnd = indexedOffset;
+                buffer.force();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "apply: failed to append to " + file.getName(), e);
+        } finally {
+            lock.unlock();
+        }
+        scheduleCompactionIfNeeded();
+    }
+
+    @Override
+    public void clear() {
+        lock.lock();
+        try {
+            synchronized (this) {
+                rewrite(new HashMap<String, String>());
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "clear: failed to rewrite " + file.getName(), e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public synchronized Collection<String> pollExternalChanges() {
+        try {
+            catchUp();
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "pollExternalChanges: failed", e);
+            reloadUnreported = true;
+        }
+        if (reloadUnreported) {
+            reloadUnreported = false;
+            changesUnreported.clear();
+            return null;
+        }
+        List<String> changed = new ArrayList<>(changesUnreported);
+        changesUnreported.clear();
+        return changed;
+    }
+
+    @Override
+    public void lockExclusive() {
+        lock.lock();
+    }
+
+    @Override
+    public void unlockExclusive() {
+        lock.unlock();
+    }
+
+    @Override
+    public String getName() {
+        return "mapped_file";
+    }
+
+    /**
+     * Picks up what other processes wrote since the last look. The header check is a plain
+     * memory read, so this is cheap enough to run before every access.
+     */
+    private void catchUp() throws IOException {
+        if (buffer.getLong(OFFSET_GENERATION) != generation) {
+            // The replacement file is complete before the old header changes, so no lock is needed.
+            reopen();
+            reloadUnreported = true;
+            return;
+        }
+        long end = buffer.getLong(OFFSET_END);
+        if (end == scannedEnd) {
+            return;
+        }
+        if (end > buffer.capacity()) {
+            remap(file.length());
+        }
+        changesUnreported.addAll(scan(end));
+    }
+
+    private void append(String key, String value) throws IOException {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        byte[] valueBytes = value == null ? new byte[0] : value.getBytes(UTF_8);
+        int recordSize = 8 + keyBytes.length + valueBytes.length;
+        if (indexedOffset + recordSize > buffer.capacity()) {
+            remap(Math.max((long) buffer.capacity() * 2, (long) indexedOffset + recordSize));
+        }
+        int position = indexedOffset;
+        buffer.putInt(position, keyBytes.length);
+        buffer.putInt(position + 4, value == null ? -1 : valueBytes.length);
+        putBytes(position + 8, keyBytes);
+        putBytes(position + 8 + keyBytes.length, valueBytes);
+        updateIndex(key, value == null ? -1 : position + 8 + keyBytes.length, valueBytes.length);
+        indexedOffset += recordSize;
+    }
+
+    private void putBytes(int position, byte[] bytes) {
+        for (int i = 0; i < bytes.length; ++i) {
+            buffer.put(position + i, bytes[i]);
+        }
+    }
+
+    private void updateIndex(String key, int valuePosition, int valueLength) {
+        Long previous = valuePosition < 0 ? index.remove(key) : index.put(key, ((long) valuePosition << 32) | (valueLength & 0xffffffffL));
+        if (previous != null) {
+            liveBytes -= (int) (long) previous;
+        }
+        if (valuePosition >= 0) {
+            liveBytes += valueLength;
+        }
+    }
+
+    /**
+     * Indexes the records between the indexed offset and {@code end}, stopping at the first one
+     * whose lengths run past {@code end} or the mapping.
+     */
+    private List<String> scan(long end) {
+        List<String> changed = new ArrayList<>();
+        scannedEnd = end;
+        int limit = (int) Math.max(0, Math.min(end, buffer.capacity()));
+        if (limit != end) {
+            Log.w(TAG, "scan: end offset " + end + " is past the " + buffer.capacity() + " bytes of " + file.getName());
+        }
+        int position = indexedOffset;
+        while (position + 8 <= limit) {
+            int keyLength = buffer.getInt(position);
+            int valueLength = buffer.getInt(position + 4);
+            if (keyLength <= 0 || valueLength < -1 || (long) position + 8 + keyLength + Math.max(valueLength, 0) > limit) {
+                Log.w(TAG, "scan: bad record at " + position + " in " + file.getName() + ", ignoring the rest");
+                break;
+            }
+            byte[] keyBytes = new byte[keyLength];
+            for (int i = 0; i < keyLength; ++i) {
+                keyBytes[i] = buffer.get(position + 8 + i);
+            }
+            String key = new String(keyBytes, UTF_8);
+            int valuePosition = position + 8 + keyLength;
+            updateIndex(key, valueLength < 0 ? -1 : valuePosition, Math.max(valueLength, 0));
+            changed.add(key);
+            position = valuePosition + Math.max(valueLength, 0);
+        }
+        indexedOffset = position;
+        return changed;
+    }
+
+    private void reopen() throws IOException {
+        index.clear();
+        liveBytes = 0;
+        created = !file.exists() || file.length() < HEADER_SIZE;
+        remap(Math.max(file.length(), INITIAL_SIZE));
+        if (created || buffer.getInt(0) != MAGIC) {
+            if (!created) {
+                Log.w(TAG, "reopen: bad header in " + file.getName() + ", starting empty");
+            }
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putLong(OFFSET_GENERATION, System.currentTimeMillis());
+            buffer.putLong(OFFSET_END, HEADER_SIZE);
+        }
+        generation = buffer.getLong(OFFSET_GENERATION);
+        indexedOffset = HEADER_SIZE;
+        scan(buffer.getLong(OFFSET_END));
+    }
+
+    private void remap(long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+    }
+
+    private synchronized void scheduleCompactionIfNeeded() {
+        if (compactScheduled || indexedOffset < COMPACT_MIN_BYTES || indexedOffset - HEADER_SIZE < liveBytes * 2) {
+            return;
+        }
+        compactScheduled = true;
+        getCompactExecutor().execute(this::compact);
+    }
+
+    private void compact() {
+        lock.lock();
+        try {
+            synchronized (this) {
+                compactScheduled = false;
+                catchUp();
+                Map<String, String> live = new HashMap<>();
+                for (String key : index.keySet()) {
+                    live.put(key, get(key));
+                }
+                int before = indexedOffset;
+                rewrite(live);
+                Log.i(TAG, "compact: " + file.getName() + " " + before + " -> " + indexedOffset + " bytes");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "compact: failed for " + file.getName(), e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the file with one holding only the given records. Caller holds the file lock.
+     */
+    private void rewrite(Map<String, String> live) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        long newGeneration = Math.max(System.currentTimeMillis(), generation + 1);
+        int size = HEADER_SIZE;
+        List<byte[]> encoded = new ArrayList<>();
+        for (Map.Entry<String, String> entry : live.entrySet()) {
+            byte[] keyBytes = entry.getKey().getBytes(UTF_8);
+            byte[] valueBytes = entry.getValue().getBytes(UTF_8);
+            encoded.add(keyBytes);
+            encoded.add(valueBytes);
+            size += 8 + keyBytes.length + valueBytes.length;
+        }
+        RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+        try {
+            raf.setLength(0);
+            raf.setLength(Math.max(INITIAL_SIZE, size * 2));
+            MappedByteBuffer target = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            target.putInt(0, MAGIC);
+            target.putInt(4, VERSION);
+            target.putLong(OFFSET_GENERATION, newGeneration);
+            target.position(HEADER_SIZE);
+            for (int i = 0; i < encoded.size(); i += 2) {
+                target.putInt(encoded.get(i).length);
+                target.putInt(encoded.get(i + 1).length);
+                target.put(encoded.get(i));
+                target.put(encoded.get(i + 1));
+            }
+            target.putLong(OFFSET_END, size);
+            target.force();
+        } finally {
+            raf.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Unable to replace " + file.getName());
+        }
+        // Processes still mapping the old file see the new generation and reopen.
+        buffer.putLong(OFFSET_GENERATION, newGeneration);
+        reopen();
+    }
+
+    private static synchronized ExecutorService getCompactExecutor() {
+        if (compactExecutor == null) {
+            compactExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "paper_compact");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return compactExecutor;
+    }
+}
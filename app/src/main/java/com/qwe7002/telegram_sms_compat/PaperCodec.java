@@ -0,0 +1,18 @@
+package com.qwe7002.telegram_sms_compat;
+
+/**
+ * Converts one PaperCompat value type to and from its stored string form.
+ */
+interface PaperCodec<T> {
+    String encode(T value);
+
+    /**
+     * Must also accept the Gson JSON written by earlier versions.
+     */
+    T decode(String raw);
+
+    /**
+     * Returns a copy the caller may mutate without touching the cached value.
+     */
+    T copy(T value);
+}
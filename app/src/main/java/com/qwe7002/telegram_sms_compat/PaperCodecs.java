@@ -0,0 +1,346 @@
+package com.qwe7002.telegram_sms_compat;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * Built-in codecs. Collections and records use a length-prefixed text encoding,
+ * {@code #<count>:} followed by {@code <length>:<chars>} per field, which decodes with
+ * plain index arithmetic and no Gson reflection. Values still holding the JSON written by
+ * earlier versions are read with a streaming JsonReader and rewritten on the next write.
+ */
+final class PaperCodecs {
+    private static final char COLLECTION_TAG = '#';
+
+    private PaperCodecs() {
+    }
+
+    static final PaperCodec<String> STRING = new PaperCodec<String>() {
+        @Override
+        public String encode(String value) {
+            return value;
+        }
+
+        @Override
+        public String decode(String raw) {
+            return raw;
+        }
+
+        @Override
+        public String copy(String value) {
+            return value;
+        }
+    };
+
+    static final PaperCodec<Integer> INT = new PaperCodec<Integer>() {
+        @Override
+        public String encode(Integer value) {
+            return value.toString();
+        }
+
+        @Override
+        public Integer decode(String raw) {
+            return Integer.parseInt(raw);
+        }
+
+        @Override
+        public Integer copy(Integer value) {
+            return value;
+        }
+    };
+
+    static final PaperCodec<Long> LONG = new PaperCodec<Long>() {
+        @Override
+        public String encode(Long value) {
+            return value.toString();
+        }
+
+        @Override
+        public Long decode(String raw) {
+            return Long.parseLong(raw);
+        }
+
+        @Override
+        public Long copy(Long value) {
+            return value;
+        }
+    };
+
+    static final PaperCodec<Boolean> BOOLEAN = new PaperCodec<Boolean>() {
+        @Override
+        public String encode(Boolean value) {
+            return value.toString();
+        }
+
+        @Override
+        public Boolean decode(String raw) {
+            return Boolean.parseBoolean(raw);
+        }
+
+        @Override
+        public Boolean copy(Boolean value) {
+            return value;
+        }
+    };
+
+    static final PaperCodec<ArrayList<String>> STRING_LIST = new PaperCodec<ArrayList<String>>() {
+        @Override
+        public String encode(ArrayList<String> value) {
+            return encodeStrings(value);
+        }
+
+        @Override
+        public ArrayList<String> decode(String raw) {
+            ArrayList<String> result = new ArrayList<>();
+            decodeStrings(raw, result);
+            return result;
+        }
+
+        @Override
+        public ArrayList<String> copy(ArrayList<String> value) {
+            return new ArrayList<>(value);
+        }
+    };
+
+    static final PaperCodec<LinkedHashSet<String>> STRING_SET = new PaperCodec<LinkedHashSet<String>>() {
+        @Override
+        public String encode(LinkedHashSet<String> value) {
+            return encodeStrings(value);
+        }
+
+        @Override
+        public LinkedHashSet<String> decode(String raw) {
+            LinkedHashSet<String> result = new LinkedHashSet<>();
+            decodeStrings(raw, result);
+            return result;
+        }
+
+        @Override
+        public LinkedHashSet<String> copy(LinkedHashSet<String> value) {
+            return new LinkedHashSet<>(value);
+        }
+    };
+
+    static final PaperCodec<HashMap<Long, String>> LONG_STRING_MAP = new PaperCodec<HashMap<Long, String>>() {
+        @Override
+        public String encode(HashMap<Long, String> value) {
+            RecordWriter writer = new RecordWriter(value.size() * 2);
+            for (Map.Entry<Long, String> entry : value.entrySet()) {
+                writer.writeLong(entry.getKey());
+                writer.writeString(entry.getValue());
+            }
+            return writer.toString();
+        }
+
+        @Override
+        public HashMap<Long, String> decode(String raw) {
+            HashMap<Long, String> result = new HashMap<>();
+            if (isLegacyJson(raw)) {
+                JsonReader reader = new JsonReader(new StringReader(raw));
+                try {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        result.put(Long.parseLong(reader.nextName()), reader.nextString());
+                    }
+                    reader.endObject();
+                } catch (IOException e) {
+                    throw new IllegalArgumentException(e);
+                }
+                return result;
+            }
+            RecordReader reader = new RecordReader(raw);
+            while (reader.hasNext()) {
+                result.put(reader.readLong(), reader.readString());
+            }
+            return result;
+        }
+
+        @Override
+        public HashMap<Long, String> copy(HashMap<Long, String> value) {
+            return new HashMap<>(value);
+        }
+    };
+
+    static final PaperCodec<LinkedHashMap<String, Long>> STRING_LONG_MAP = new PaperCodec<LinkedHashMap<String, Long>>() {
+        @Override
+        public String encode(LinkedHashMap<String, Long> value) {
+            RecordWriter writer = new RecordWriter(value.size() * 2);
+            for (Map.Entry<String, Long> entry : value.entrySet()) {
+                writer.writeString(entry.getKey());
+                writer.writeLong(entry.getValue());
+            }
+            return writer.toString();
+        }
+
+        @Override
+        public LinkedHashMap<String, Long> decode(String raw) {
+            LinkedHashMap<String, Long> result = new LinkedHashMap<>();
+            RecordReader reader = new RecordReader(raw);
+            while (reader.hasNext()) {
+                result.put(reader.readString(), reader.readLong());
+            }
+            return result;
+        }
+
+        @Override
+        public LinkedHashMap<String, Long> copy(LinkedHashMap<String, Long> value) {
+            return new LinkedHashMap<>(value);
+        }
+    };
+
+    /**
+     * Base for immutable value classes stored as a fixed sequence of fields.
+     */
+    abstract static class RecordCodec<T> implements PaperCodec<T> {
+        protected abstract void write(T value, RecordWriter writer);
+
+        protected abstract T read(RecordReader reader);
+
+        @Override
+        public final String encode(T value) {
+            RecordWriter writer = new RecordWriter(8);
+            write(value, writer);
+            return writer.toString();
+        }
+
+        @Override
+        public final T decode(String raw) {
+            return read(new RecordReader(raw));
+        }
+
+        @Override
+        public T copy(T value) {
+            return value;
+        }
+    }
+
+    static final class RecordWriter {
+        private final StringBuilder fields = new StringBuilder();
+        private int count = 0;
+
+        RecordWriter(int expectedFields) {
+            fields.ensureCapacity(expectedFields * 16);
+        }
+
+        RecordWriter writeString(String value) {
+            if (value == null) {
+                fields.append("-1:");
+            } else {
+                fields.append(value.length()).append(':').append(value);
+            }
+            ++count;
+            return this;
+        }
+
+        RecordWriter writeLong(long value) {
+            return writeString(Long.toString(value));
+        }
+
+        RecordWriter writeInt(int value) {
+            return writeString(Integer.toString(value));
+        }
+
+        RecordWriter writeBoolean(boolean value) {
+            return writeString(value ? "1" : "0");
+        }
+
+        @Override
+        public String toString() {
+            return new StringBuilder(fields.length() + 8).append(COLLECTION_TAG).append(count).append(':').append(fields).toString();
+        }
+    }
+
+    static final class RecordReader {
+        private final String raw;
+        private final int count;
+        private int position;
+        private int read = 0;
+
+        RecordReader(String raw) {
+            if (raw.isEmpty() || raw.charAt(0) != COLLECTION_TAG) {
+                throw new IllegalArgumentException("Not a record value");
+            }
+            this.raw = raw;
+            int separator = raw.indexOf(':', 1);
+            this.count = Integer.parseInt(raw.substring(1, separator));
+            this.position = separator + 1;
+        }
+
+        boolean hasNext() {
+            return read < count;
+        }
+
+        String readString() {
+            if (!hasNext()) {
+                throw new IllegalArgumentException("Record has no more fields");
+            }
+            int separator = raw.indexOf(':', position);
+            int length = Integer.parseInt(raw.substring(position, separator));
+            ++read;
+            if (length < 0) {
+                position = separator + 1;
+                return null;
+            }
+            position = separator + 1 + length;
+            return raw.substring(separator + 1, position);
+        }
+
+        long readLong() {
+            return Long.parseLong(readString());
+        }
+
+        int readInt() {
+            return Integer.parseInt(readString());
+        }
+
+        boolean readBoolean() {
+            return "1".equals(readString());
+        }
+    }
+
+    private static String encodeStrings(Collection<String> values) {
+        RecordWriter writer = new RecordWriter(values.size());
+        for (String value : values) {
+            writer.writeString(value);
+        }
+        return writer.toString();
+    }
+
+    private static void decodeStrings(String raw, Collection<String> target) {
+        if (isLegacyJson(raw)) {
+            JsonReader reader = new JsonReader(new StringReader(raw));
+            try {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (reader.peek() == JsonToken.NULL) {
+                        reader.nextNull();
+                        target.add(null);
+                    } else {
+                        target.add(reader.nextString());
+                    }
+                }
+                reader.endArray();
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e);
+            }
+            return;
+        }
+        RecordReader reader = new RecordReader(raw);
+        while (reader.hasNext()) {
+            target.add(reader.readString());
+        }
+    }
+
+    private static boolean isLegacyJson(String raw) {
+        return !raw.isEmpty() && (raw.charAt(0) == '[' || raw.charAt(0) == '{');
+    }
+}
@@ -7,26 +7,98 @@ import android.util.Log;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 
+import java.io.IOException;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * Compatibility replacement for PaperDB using SharedPreferences
+ * Compatibility replacement for PaperDB on top of a pluggable {@link PaperStorage}
+ * Decoded values are cached per book, and writes are coalesced for a short window
+ * so repeated writes to one key cost a single serialization and apply().
+ * Books use {@link MappedFileStorage} unless the "paper_storage_backend" setting asks for
+ * SharedPreferences or the mapped file cannot be opened.
+ * Reads and writes through a {@link PaperKey} use its codec instead of Gson reflection.
+ * Read-modify-write sequences go through {@link #update} or {@link #transaction}, which lock
+ * the key in this process and the storage across processes, then persist before unlocking.
  */
 public class PaperCompat {
     private static final String TAG = "PaperCompat";
+    private static final long WRITE_BEHIND_DELAY_MILLIS = 100;
+    private static final Object ABSENT = new Object();
+    private static final String BACKEND_SHARED_PREFERENCES = "shared_preferences";
+    private static final int LOCK_STRIPES = 16;
     private static Context context;
     private static Gson gson = new Gson();
+    private static final Map<String, PaperCompat> books = new HashMap<>();
+    private static ScheduledExecutorService writeBehindExecutor;
+
+    private static final AtomicLong cacheHits = new AtomicLong();
+    private static final AtomicLong cacheMisses = new AtomicLong();
+    private static final AtomicLong serializationCount = new AtomicLong();
+    private static final AtomicLong serializationNanos = new AtomicLong();
+    private static final AtomicLong coalescedWrites = new AtomicLong();
+    private static final AtomicLong flushCount = new AtomicLong();
+    private static final AtomicLong externalInvalidations = new AtomicLong();
+    private static final AtomicLong codecDecodes = new AtomicLong();
+    private static final AtomicLong codecDecodeNanos = new AtomicLong();
+    private static final AtomicLong gsonDecodes = new AtomicLong();
+    private static final AtomicLong gsonDecodeNanos = new AtomicLong();
+    private static final AtomicLong updates = new AtomicLong();
+    private static final AtomicLong transactions = new AtomicLong();
 
     private final String bookName;
-    private final SharedPreferences preferences;
+    private final PaperStorage storage;
+    private final Map<String, Object> cache = new HashMap<>();
+    private final Map<String, Object> pendingWrites = new LinkedHashMap<>();
+    // Codec that produced the cached or pending value of a key; absent for untyped access.
+    private final Map<String, PaperCodec<?>> codecs = new HashMap<>();
+    private final ReentrantLock[] keyLocks = new ReentrantLock[LOCK_STRIPES];
+    // Orders batches inside this process for storages whose exclusive lock is a no-op.
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private boolean flushScheduled = false;
+
+    public interface Mutator<T> {
+        /**
+         * Returns the new value, which may be {@code current} itself. Returning null deletes the key.
+         */
+        T apply(T current);
+    }
+
+    public interface Transaction {
+        void run(PaperCompat book);
+    }
 
     private PaperCompat(String bookName) {
         this.bookName = bookName;
-        this.preferences = context.getSharedPreferences("paperdb_" + bookName, Context.MODE_PRIVATE);
+        this.storage = openStorage(bookName);
+        for (int i = 0; i < LOCK_STRIPES; ++i) {
+            keyLocks[i] = new ReentrantLock();
+        }
+    }
+
+    private static PaperStorage openStorage(String bookName) {
+        SharedPreferences preferences = context.getSharedPreferences("paperdb_" + bookName, Context.MODE_PRIVATE);
+        String backend = context.getSharedPreferences("data", Context.MODE_PRIVATE).getString("paper_storage_backend", "mapped_file");
+        if (!BACKEND_SHARED_PREFERENCES.equals(backend)) {
+            try {
+                return MappedFileStorage.open(context, bookName, preferences);
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Unable to open mapped storage for " + bookName + ", using SharedPreferences", e);
+            }
+        }
+        return new SharedPreferencesStorage(preferences);
     }
 
     public static void init(Context ctx) {
@@ -34,64 +106,366 @@ public class PaperCompat {
     }
 
     public static PaperCompat book() {
-        return new PaperCompat("default");
+        return book("default");
     }
 
     public static PaperCompat book(String bookName) {
-        return new PaperCompat(bookName);
+        synchronized (books) {
+            PaperCompat book = books.get(bookName);
+            if (book == null) {
+                book = new PaperCompat(bookName);
+                books.put(bookName, book);
+            }
+            return book;
+        }
     }
 
-    public void write(String key, Object value) {
+    public synchronized void write(String key, Object value) {
+        Object stored = copyOf(value);
+        cache.put(key, stored);
+        codecs.remove(key);
+        queueWrite(key, stored);
+    }
+
+    public synchronized <T> void write(PaperKey<T> key, T value) {
+        T stored = key.codec.copy(value);
+        cache.put(key.name, stored);
+        codecs.put(key.name, key.codec);
+        queueWrite(key.name, stored);
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized <T> T read(PaperKey<T> key) {
+        syncExternalChanges();
+        Object value = pendingWrites.containsKey(key.name) ? pendingWrites.get(key.name) : cache.get(key.name);
+        if (value == ABSENT || (value != null && codecs.get(key.name) == key.codec)) {
+            cacheHits.incrementAndGet();
+            return value == ABSENT ? key.getDefault() : key.codec.copy((T) value);
+        }
+        cacheMisses.incrementAndGet();
+        String raw = storage.get(key.name);
+        if (raw == null) {
+            cache.put(key.name, ABSENT);
+            return key.getDefault();
+        }
         try {
-            String json = gson.toJson(value);
-            preferences.edit().putString(key, json).apply();
-        } catch (Exception e) {
-            Log.e(TAG, "Error writing to PaperCompat", e);
+            long start = System.nanoTime();
+            T result = key.codec.decode(raw);
+            codecDecodeNanos.addAndGet(System.nanoTime() - start);
+            codecDecodes.incrementAndGet();
+            cache.put(key.name, result);
+            codecs.put(key.name, key.codec);
+            return key.codec.copy(result);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Error decoding " + key.name, e);
+            return key.getDefault();
         }
     }
 
+    /**
+     * Atomically replaces the value of {@code key} with {@code mutator}'s result and persists it.
+     */
+    public <T> T update(PaperKey<T> key, Mutator<T> mutator) {
+        ReentrantLock keyLock = keyLocks[(key.name.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+        keyLock.lock();
+        storage.lockExclusive();
+        try {
+            T result = mutator.apply(read(key));
+            if (result == null) {
+                delete(key);
+            } else {
+                write(key, result);
+            }
+            flush();
+            updates.incrementAndGet();
+            return result;
+        } finally {
+            storage.unlockExclusive();
+            keyLock.unlock();
+        }
+    }
+
+    /**
+     * Runs several reads and writes as one unit that no other update can interleave with,
+     * then persists all of them together.
+     */
+    public void transaction(Transaction transaction) {
+        for (ReentrantLock keyLock : keyLocks) {
+            keyLock.lock();
+        }
+        storage.lockExclusive();
+        try {
+            transaction.run(this);
+            flush();
+            transactions.incrementAndGet();
+        } finally {
+            storage.unlockExclusive();
+            for (int i = LOCK_STRIPES - 1; i >= 0; --i) {
+                keyLocks[i].unlock();
+            }
+        }
+    }
+
+    public boolean contains(PaperKey<?> key) {
+        return contains(key.name);
+    }
+
+    public void delete(PaperKey<?> key) {
+        delete(key.name);
+    }
+
     @SuppressWarnings("unchecked")
-    public <T> T read(String key, T defaultValue) {
+    public synchronized <T> T read(String key, T defaultValue) {
+        syncExternalChanges();
+        Object value = pendingWrites.containsKey(key) ? pendingWrites.get(key) : cache.get(key);
+        if (value != null && (value == ABSENT || defaultValue == null || defaultValue.getClass().isInstance(value))) {
+            cacheHits.incrementAndGet();
+            return value == ABSENT ? defaultValue : (T) copyOf(value);
+        }
+        cacheMisses.incrementAndGet();
         try {
-            String json = preferences.getString(key, null);
+            String json = storage.get(key);
             if (json == null) {
+                cache.put(key, ABSENT);
                 return defaultValue;
             }
-
-            // Handle common types directly
-            if (defaultValue instanceof String) {
-                return (T) json;
-            } else if (defaultValue instanceof Integer) {
-                return (T) Integer.valueOf(json);
-            } else if (defaultValue instanceof Long) {
-                return (T) Long.valueOf(json);
-            } else if (defaultValue instanceof Boolean) {
-                return (T) Boolean.valueOf(json);
-            } else if (defaultValue instanceof Float) {
-                return (T) Float.valueOf(json);
-            } else if (defaultValue instanceof Double) {
-                return (T) Double.valueOf(json);
-            } else {
-                // Use Gson for complex objects
-                Type type = getTypeForDefaultValue(defaultValue);
-                return gson.fromJson(json, type);
+            long start = System.nanoTime();
+            T result = decode(json, defaultValue);
+            gsonDecodeNanos.addAndGet(System.nanoTime() - start);
+            gsonDecodes.incrementAndGet();
+            if (result != null) {
+                cache.put(key, result);
+                codecs.remove(key);
             }
+            return (T) copyOf(result);
         } catch (Exception e) {
             Log.e(TAG, "Error reading from PaperCompat", e);
             return defaultValue;
         }
     }
 
-    public boolean contains(String key) {
-        return preferences.contains(key);
+    public synchronized boolean contains(String key) {
+        syncExternalChanges();
+        Object value = pendingWrites.containsKey(key) ? pendingWrites.get(key) : cache.get(key);
+        if (value != null) {
+            return value != ABSENT;
+        }
+        return storage.contains(key);
     }
 
-    public void delete(String key) {
-        preferences.edit().remove(key).apply();
+    public synchronized List<String> getAllKeys() {
+        syncExternalChanges();
+        Set<String> keys = new LinkedHashSet<>(storage.keys());
+        for (Map.Entry<String, Object> entry : pendingWrites.entrySet()) {
+            if (entry.getValue() == ABSENT) {
+                keys.remove(entry.getKey());
+            } else {
+                keys.add(entry.getKey());
+            }
+        }
+        return new ArrayList<>(keys);
+    }
+
+    public synchronized void delete(String key) {
+        cache.put(key, ABSENT);
+        codecs.remove(key);
+        queueWrite(key, ABSENT);
     }
 
     public void destroy() {
-        preferences.edit().clear().apply();
+        storage.lockExclusive();
+        try {
+            synchronized (this) {
+                cache.clear();
+                pendingWrites.clear();
+                codecs.clear();
+                storage.clear();
+            }
+        } finally {
+            storage.unlockExclusive();
+        }
+    }
+
+    /**
+     * Writes out every coalesced change of every book immediately.
+     */
+    public static void flushAll() {
+        List<PaperCompat> snapshot;
+        synchronized (books) {
+            snapshot = new ArrayList<>(books.values());
+        }
+        for (PaperCompat book : snapshot) {
+            book.flush();
+        }
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long hits = cacheHits.get();
+        long misses = cacheMisses.get();
+        long serialized = serializationCount.get();
+        stats.put("cacheHits", hits);
+        stats.put("cacheMisses", misses);
+        stats.put("cacheHitRatio", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses));
+        stats.put("serializations", serialized);
+        stats.put("avgSerializationMicros", serialized == 0 ? 0 : serializationNanos.get() / serialized / 1000);
+        stats.put("coalescedWrites", coalescedWrites.get());
+        stats.put("flushes", flushCount.get());
+        stats.put("externalInvalidations", externalInvalidations.get());
+        stats.put("updates", updates.get());
+        stats.put("transactions", transactions.get());
+        long codecDecoded = codecDecodes.get();
+        long gsonDecoded = gsonDecodes.get();
+        stats.put("codecDecodes", codecDecoded);
+        stats.put("avgCodecDecodeMicros", codecDecoded == 0 ? 0.0 : codecDecodeNanos.get() / 1000.0 / codecDecoded);
+        stats.put("gsonDecodes", gsonDecoded);
+        stats.put("avgGsonDecodeMicros", gsonDecoded == 0 ? 0.0 : gsonDecodeNanos.get() / 1000.0 / gsonDecoded);
+        Map<String, String> backends = new LinkedHashMap<>();
+        synchronized (books) {
+            for (PaperCompat book : books.values()) {
+                backends.put(book.bookName, book.storage.getName());
+            }
+        }
+        stats.put("backends", backends);
+        return stats;
+    }
+
+    /**
+     * Drops cached values that another process has changed in the backing storage.
+     * Keys with a pending local write keep it, since that write is newer.
+     */
+    private void syncExternalChanges() {
+        Collection<String> changed = storage.pollExternalChanges();
+        if (changed == null) {
+            cache.clear();
+            codecs.keySet().retainAll(pendingWrites.keySet());
+            externalInvalidations.incrementAndGet();
+            return;
+        }
+        for (String key : changed) {
+            if (cache.remove(key) != null) {
+                externalInvalidations.incrementAndGet();
+            }
+            if (!pendingWrites.containsKey(key)) {
+                codecs.remove(key);
+            }
+        }
+    }
+
+    private void queueWrite(String key, Object value) {
+        if (pendingWrites.containsKey(key)) {
+            coalescedWrites.incrementAndGet();
+        }
+        pendingWrites.put(key, value);
+        if (!flushScheduled) {
+            flushScheduled = true;
+            getWriteBehindExecutor().schedule(this::flush, WRITE_BEHIND_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes out the pending batch. The snapshot and the apply happen under the storage lock, so
+     * a batch can never land after a newer one written by {@link #update} or another flush.
+     */
+    private void flush() {
+        storage.lockExclusive();
+        flushLock.lock();
+        try {
+            flushLocked();
+        } finally {
+            flushLock.unlock();
+            storage.unlockExclusive();
+        }
+    }
+
+    private void flushLocked() {
+        Map<String, Object> batch;
+        Map<String, PaperCodec<?>> batchCodecs = new HashMap<>();
+        synchronized (this) {
+            flushScheduled = false;
+            if (pendingWrites.isEmpty()) {
+                return;
+            }
+            batch = new LinkedHashMap<>(pendingWrites);
+            pendingWrites.clear();
+            for (String key : batch.keySet()) {
+                PaperCodec<?> codec = codecs.get(key);
+                if (codec != null) {
+                    batchCodecs.put(key, codec);
+                }
+            }
+        }
+        Map<String, String> changes = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> entry : batch.entrySet()) {
+            if (entry.getValue() == ABSENT) {
+                changes.put(entry.getKey(), null);
+                continue;
+            }
+            try {
+                long start = System.nanoTime();
+                String json = encode(batchCodecs.get(entry.getKey()), entry.getValue());
+                serializationNanos.addAndGet(System.nanoTime() - start);
+                serializationCount.incrementAndGet();
+                changes.put(entry.getKey(), json);
+            } catch (Exception e) {
+                Log.e(TAG, "Error writing to PaperCompat", e);
+            }
+        }
+        storage.apply(changes);
+        flushCount.incrementAndGet();
+    }
+
+    private static synchronized ScheduledExecutorService getWriteBehindExecutor() {
+        if (writeBehindExecutor == null) {
+            writeBehindExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "paper_write_behind");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return writeBehindExecutor;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String encode(PaperCodec<?> codec, Object value) {
+        if (codec == null) {
+            return gson.toJson(value);
+        }
+        return ((PaperCodec<Object>) codec).encode(value);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T decode(String json, T defaultValue) {
+        // Handle common types directly
+        if (defaultValue instanceof String) {
+            return (T) json;
+        } else if (defaultValue instanceof Integer) {
+            return (T) Integer.valueOf(json);
+        } else if (defaultValue instanceof Long) {
+            return (T) Long.valueOf(json);
+        } else if (defaultValue instanceof Boolean) {
+            return (T) Boolean.valueOf(json);
+        } else if (defaultValue instanceof Float) {
+            return (T) Float.valueOf(json);
+        } else if (defaultValue instanceof Double) {
+            return (T) Double.valueOf(json);
+        } else {
+            // Use Gson for complex objects
+            Type type = getTypeForDefaultValue(defaultValue);
+            return gson.fromJson(json, type);
+        }
+    }
+
+    /**
+     * Callers mutate what they read before writing it back, so collections never leave the cache by reference.
+     */
+    private static Object copyOf(Object value) {
+        if (value instanceof ArrayList) {
+            return new ArrayList<>((ArrayList<?>) value);
+        } else if (value instanceof HashMap) {
+            return new HashMap<>((HashMap<?, ?>) value);
+        }
+        return value;
     }
 
     private Type getTypeForDefaultValue(Object defaultValue) {
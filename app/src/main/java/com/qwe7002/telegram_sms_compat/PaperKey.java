@@ -0,0 +1,34 @@
+package com.qwe7002.telegram_sms_compat;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * A PaperCompat key together with its codec and default, so reads and writes are typed
+ * at compile time instead of inferred from the default value's class.
+ */
+final class PaperKey<T> {
+    static final PaperKey<ArrayList<String>> NOTIFY_LISTEN_LIST = new PaperKey<>("notify_listen_list", PaperCodecs.STRING_LIST, new ArrayList<String>());
+    static final PaperKey<ArrayList<String>> BLACK_KEYWORD_LIST = new PaperKey<>("black_keyword_list", PaperCodecs.STRING_LIST, new ArrayList<String>());
+    static final PaperKey<LinkedHashMap<String, Long>> BLACK_KEYWORD_HITS = new PaperKey<>("black_keyword_hits", PaperCodecs.STRING_LONG_MAP, new LinkedHashMap<String, Long>());
+    static final PaperKey<ArrayList<String>> LEGACY_SPAM_SMS_LIST = new PaperKey<>("spam_sms_list", PaperCodecs.STRING_LIST, new ArrayList<String>());
+    static final PaperKey<ArrayList<String>> LEGACY_RESEND_LIST = new PaperKey<>("resend_list", PaperCodecs.STRING_LIST, new ArrayList<String>());
+    static final PaperKey<Long> UPDATE_OFFSET = new PaperKey<>("update_offset", PaperCodecs.LONG, 0L);
+    static final PaperKey<LinkedHashSet<String>> HANDLED_UPDATE_IDS = new PaperKey<>("handled_update_ids", PaperCodecs.STRING_SET, new LinkedHashSet<String>());
+    static final PaperKey<String> UPDATE_TOKEN_HASH = new PaperKey<>("update_token_hash", PaperCodecs.STRING, "");
+
+    final String name;
+    final PaperCodec<T> codec;
+    private final T defaultValue;
+
+    PaperKey(String name, PaperCodec<T> codec, T defaultValue) {
+        this.name = name;
+        this.codec = codec;
+        this.defaultValue = defaultValue;
+    }
+
+    T getDefault() {
+        return defaultValue == null ? null : codec.copy(defaultValue);
+    }
+}
@@ -0,0 +1,38 @@
+package com.qwe7002.telegram_sms_compat;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Key-value backend behind {@link PaperCompat}. Values are the already-encoded strings.
+ */
+interface PaperStorage {
+    String get(String key);
+
+    boolean contains(String key);
+
+    Set<String> keys();
+
+    /**
+     * Persists a batch of changes at once. A null value removes the key.
+     */
+    void apply(Map<String, String> changes);
+
+    void clear();
+
+    /**
+     * Returns the keys other processes changed since the previous call,
+     * or null when anything may have changed and cached values must all be dropped.
+     */
+    Collection<String> pollExternalChanges();
+
+    /**
+     * Keeps other processes from writing until {@link #unlockExclusive()}. Reentrant.
+     */
+    void lockExclusive();
+
+    void unlockExclusive();
+
+    String getName();
+}
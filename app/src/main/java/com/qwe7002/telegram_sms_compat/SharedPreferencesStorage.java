@@ -0,0 +1,73 @@
+package com.qwe7002.telegram_sms_compat;
+
+import android.content.SharedPreferences;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The original PaperCompat storage, kept as a fallback when the mapped file cannot be used.
+ */
+class SharedPreferencesStorage implements PaperStorage {
+    private final SharedPreferences preferences;
+
+    SharedPreferencesStorage(SharedPreferences preferences) {
+        this.preferences = preferences;
+    }
+
+    @Override
+    public String get(String key) {
+        return preferences.getString(key, null);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return preferences.contains(key);
+    }
+
+    @Override
+    public Set<String> keys() {
+        return new HashSet<>(preferences.getAll().keySet());
+    }
+
+    @Override
+    public void apply(Map<String, String> changes) {
+        SharedPreferences.Editor editor = preferences.edit();
+        for (Map.Entry<String, String> entry : changes.entrySet()) {
+            if (entry.getValue() == null) {
+                editor.remove(entry.getKey());
+            } else {
+                editor.putString(entry.getKey(), entry.getValue());
+            }
+        }
+        editor.apply();
+    }
+
+    @Override
+    public void clear() {
+        preferences.edit().clear().apply();
+    }
+
+    @Override
+    public Collection<String> pollExternalChanges() {
+        // SharedPreferences never reloads changes made by other processes.
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void lockExclusive() {
+        // Other processes never see this process's SharedPreferences writes anyway.
+    }
+
+    @Override
+    public void unlockExclusive() {
+    }
+
+    @Override
+    public String getName() {
+        return "shared_preferences";
+    }
+}
@@ -3,6 +3,8 @@ package com.qwe7002.telegram_sms_compat;
 import android.app.Application;
 import android.util.Log;
 
+import com.github.sumimakito.codeauxlib.RecipePacks;
+
 import org.conscrypt.Conscrypt;
 
 import java.security.Security;
@@ -31,6 +33,14 @@ public class TelegramSMSApplication extends Application {
             Log.e(TAG, "Failed to install Conscrypt security provider", e);
             Log.w(TAG, "Will use manual TLS 1.2 configuration in OkHttp instead");
         }
+
+        // Start the outbox commit thread; it first replays anything this process left unsent.
+        outbox.get(this);
+        if (public_func.get_process_suffix(this).equals("main")) {
+            new Thread(() -> reply_index.migrate_legacy_keys(this)).start();
+            // Verification-code recipes are needed by the first SMS; compile them before it arrives.
+            RecipePacks.prepare(this);
+        }
     }
 }
 
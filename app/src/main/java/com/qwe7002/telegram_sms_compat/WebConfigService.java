@@ -16,13 +16,16 @@ import android.util.Log;
 
 import androidx.annotation.Nullable;
 
+import com.github.sumimakito.codeauxlib.RecipePacks;
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -168,6 +171,9 @@ public class WebConfigService extends Service {
                     config.put("verificationCode", prefs.getBoolean("verification_code", true));
                     config.put("privacyMode", prefs.getBoolean("privacy_mode", false));
                     config.put("dohSwitch", prefs.getBoolean("doh_switch", false));
+                    config.put("dutyCyclePolling", prefs.getBoolean("duty_cycle_polling", false));
+                    config.put("replyIndexCapacity", prefs.getInt("reply_index_capacity", 2000));
+                    config.put("replyIndexTtlHours", prefs.getInt("reply_index_ttl_hours", 168));
                     
                     return jsonResponse(Response.Status.OK, config);
                 }
@@ -209,9 +215,14 @@ public class WebConfigService extends Service {
                         JsonObject json = gson.fromJson(jsonString, JsonObject.class);
                         Log.d(TAG, "Parsed JSON successfully");
 
+                        String newBotToken = json.has("botToken") ? json.get("botToken").getAsString() : "";
+                        if (!newBotToken.equals(prefs.getString("bot_token", ""))) {
+                            reply_index.get(context).clear();
+                            bot_identity.invalidate(context);
+                        }
                         SharedPreferences.Editor editor = prefs.edit();
                         // Use safe getters with defaults for boolean values
-                        editor.putString("bot_token", json.has("botToken") ? json.get("botToken").getAsString() : "");
+                        editor.putString("bot_token", newBotToken);
                         editor.putString("chat_id", json.has("chatId") ? json.get("chatId").getAsString() : "");
                         editor.putString("trusted_phone_number", json.has("trustedNumber") ? json.get("trustedNumber").getAsString() : "");
                         editor.putBoolean("chat_command", json.has("chatCommand") && json.get("chatCommand").getAsBoolean());
@@ -221,6 +232,13 @@ public class WebConfigService extends Service {
                         editor.putBoolean("verification_code", json.has("verificationCode") && json.get("verificationCode").getAsBoolean());
                         editor.putBoolean("privacy_mode", json.has("privacyMode") && json.get("privacyMode").getAsBoolean());
                         editor.putBoolean("doh_switch", json.has("dohSwitch") && json.get("dohSwitch").getAsBoolean());
+                        editor.putBoolean("duty_cycle_polling", json.has("dutyCyclePolling") && json.get("dutyCyclePolling").getAsBoolean());
+                        if (json.has("replyIndexCapacity")) {
+                            editor.putInt("reply_index_capacity", json.get("replyIndexCapacity").getAsInt());
+                        }
+                        if (json.has("replyIndexTtlHours")) {
+                            editor.putInt("reply_index_ttl_hours", json.get("replyIndexTtlHours").getAsInt());
+                        }
                         editor.putBoolean("initialized", true);
                         editor.apply();
 
@@ -305,6 +323,145 @@ public class WebConfigService extends Service {
                     return jsonResponse(Response.Status.OK, info);
                 }
                 
+                // GET /api/stats - Storage and delivery metrics, plus those published by the other processes
+                if (uri.equals("/api/stats") && method == Method.GET) {
+                    Map<String, Object> stats = new HashMap<>();
+                    stats.put("paperCompat", PaperCompat.getStats());
+                    stats.put("outbox", outbox.get(context).get_stats());
+                    stats.put("smsReceiver", sms_receiver.get_stats());
+                    stats.put("smsDedupe", sms_dedupe.get(context).get_stats());
+                    stats.put("verificationCode", RecipePacks.getStats(context));
+                    stats.put("blacklist", keyword_filter.get_stats(context));
+                    stats.put("rules", rule_engine.get_stats(context));
+                    stats.put("processes", process_stats.collect(context));
+                    return jsonResponse(Response.Status.OK, stats);
+                }
+
+                // GET /api/blacklist - Spam keywords and their hit counts
+                if (uri.equals("/api/blacklist") && method == Method.GET) {
+                    PaperCompat.init(context);
+                    Map<String, Object> blacklist = new HashMap<>();
+                    blacklist.put("keywords", PaperCompat.book().read(PaperKey.BLACK_KEYWORD_LIST));
+                    blacklist.put("hits", PaperCompat.book().read(PaperKey.BLACK_KEYWORD_HITS));
+                    return jsonResponse(Response.Status.OK, blacklist);
+                }
+
+                // POST /api/blacklist - Replace the spam keywords
+                if (uri.equals("/api/blacklist") && method == Method.POST) {
+                    Map<String, String> response = new HashMap<>();
+                    JsonObject json;
+                    try {
+                        json = gson.fromJson(readBody(session), JsonObject.class);
+                    } catch (IllegalArgumentException e) {
+                        response.put("error", e.getMessage());
+                        return jsonResponse(Response.Status.BAD_REQUEST, response);
+                    }
+                    if (json == null || !json.has("keywords") || !json.get("keywords").isJsonArray()) {
+                        response.put("error", "Expected a keywords array");
+                        return jsonResponse(Response.Status.BAD_REQUEST, response);
+                    }
+                    ArrayList<String> keywords = new ArrayList<>();
+                    for (JsonElement item : json.getAsJsonArray("keywords")) {
+                        keywords.add(item.getAsString());
+                    }
+                    keyword_filter.set_keywords(context, keywords);
+                    response.put("message", "Blacklist saved");
+                    return jsonResponse(Response.Status.OK, response);
+                }
+
+                // GET /api/rules - Routing rules, in the order they are applied
+                if (uri.equals("/api/rules") && method == Method.GET) {
+                    PaperCompat.init(context);
+                    return jsonResponse(Response.Status.OK, PaperCompat.book().read(rule_engine.RULES));
+                }
+
+                // POST /api/rules - Replace the routing rules
+                if (uri.equals("/api/rules") && method == Method.POST) {
+                    Map<String, String> response = new HashMap<>();
+                    try {
+                        JsonElement json = gson.fromJson(readBody(session), JsonElement.class);
+                        if (json == null || !json.isJsonArray()) {
+                            throw new IllegalArgumentException("Expected an array of rules");
+                        }
+                        ArrayList<rule_engine.rule> rules = new ArrayList<>();
+                        for (JsonElement item : json.getAsJsonArray()) {
+                            JsonObject rule = item.getAsJsonObject();
+                            rules.add(new rule_engine.rule(
+                                rule.has("name") ? rule.get("name").getAsString() : String.valueOf(rules.size()),
+                                rule.has("condition") ? rule.get("condition").getAsString() : null,
+                                rule.has("value") ? rule.get("value").getAsString() : "",
+                                rule.has("action") ? rule.get("action").getAsString() : null,
+                                rule.has("target") ? rule.get("target").getAsString() : "",
+                                !rule.has("enabled") || rule.get("enabled").getAsBoolean()));
+                        }
+                        rule_engine.set_rules(context, rules);
+                    } catch (IllegalArgumentException | IllegalStateException e) {
+                        response.put("error", e.getMessage());
+                        return jsonResponse(Response.Status.BAD_REQUEST, response);
+                    }
+                    response.put("message", "Rules saved");
+                    return jsonResponse(Response.Status.OK, response);
+                }
+
+                // GET /api/templates - Message templates with their defaults and placeholders
+                if (uri.equals("/api/templates") && method == Method.GET) {
+                    return jsonResponse(Response.Status.OK, message_template.list(context));
+                }
+
+                // POST /api/templates - Override templates; null or "" restores a default
+                if (uri.equals("/api/templates") && method == Method.POST) {
+                    Map<String, String> response = new HashMap<>();
+                    try {
+                        JsonObject json = gson.fromJson(readBody(session), JsonObject.class);
+                        if (json == null) {
+                            throw new IllegalArgumentException("Expected an object of templates");
+                        }
+                        Map<String, String> templates = new HashMap<>();
+                        for (Map.Entry<String, JsonElement> entry : json.entrySet()) {
+                            String template = entry.getValue().isJsonNull() ? null : entry.getValue().getAsString();
+                            message_template.validate(entry.getKey(), template);
+                            templates.put(entry.getKey(), template);
+                        }
+                        for (Map.Entry<String, String> entry : templates.entrySet()) {
+                            message_template.set(context, entry.getKey(), entry.getValue());
+                        }
+                    } catch (IllegalArgumentException | IllegalStateException e) {
+                        response.put("error", e.getMessage());
+                        return jsonResponse(Response.Status.BAD_REQUEST, response);
+                    }
+                    response.put("message", "Templates saved");
+                    return jsonResponse(Response.Status.OK, response);
+                }
+
+                // GET /api/recipes - Verification-code recipe packs, in the order they are tried
+                if (uri.equals("/api/recipes") && method == Method.GET) {
+                    return jsonResponse(Response.Status.OK, RecipePacks.list(context));
+                }
+
+                // POST /api/recipes/<language> - Upload a recipe pack; DELETE removes an uploaded one
+                if (uri.startsWith("/api/recipes/")) {
+                    String language = uri.substring("/api/recipes/".length());
+                    Map<String, String> response = new HashMap<>();
+                    try {
+                        if (method == Method.POST) {
+                            RecipePacks.install(context, language, readBody(session));
+                            response.put("message", "Recipe pack " + language + " installed");
+                            return jsonResponse(Response.Status.OK, response);
+                        }
+                        if (method == Method.DELETE) {
+                            if (!RecipePacks.remove(context, language)) {
+                                response.put("error", "No uploaded recipe pack for " + language);
+                                return jsonResponse(Response.Status.NOT_FOUND, response);
+                            }
+                            response.put("message", "Recipe pack " + language + " removed");
+                            return jsonResponse(Response.Status.OK, response);
+                        }
+                    } catch (IllegalArgumentException e) {
+                        response.put("error", e.getMessage());
+                        return jsonResponse(Response.Status.BAD_REQUEST, response);
+                    }
+                }
+
                 // GET /api/test - Test Telegram connection
                 if (uri.equals("/api/test") && method == Method.GET) {
                     // TODO: Implement actual Telegram connection test
@@ -325,6 +482,27 @@ public class WebConfigService extends Service {
             }
         }
 
+        private String readBody(IHTTPSession session) throws IOException {
+            String contentLengthStr = session.getHeaders().get("content-length");
+            if (contentLengthStr == null) {
+                throw new IllegalArgumentException("Missing content-length header");
+            }
+            int contentLength = Integer.parseInt(contentLengthStr);
+            byte[] buffer = new byte[contentLength];
+            int totalBytesRead = 0;
+            while (totalBytesRead < contentLength) {
+                int bytesRead = session.getInputStream().read(buffer, totalBytesRead, contentLength - totalBytesRead);
+                if (bytesRead == -1) {
+                    break;
+                }
+                totalBytesRead += bytesRead;
+            }
+            if (totalBytesRead != contentLength) {
+                throw new IllegalArgumentException("Incomplete request body: expected " + contentLength + " bytes, got " + totalBytesRead);
+            }
+            return new String(buffer, java.nio.charset.StandardCharsets.UTF_8);
+        }
+
         private Response jsonResponse(Response.Status status, Object data) {
             String json = gson.toJson(data);
             return newFixedLengthResponse(status, "application/json", json);
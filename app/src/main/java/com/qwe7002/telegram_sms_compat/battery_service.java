@@ -91,20 +91,20 @@ public class battery_service extends Service {
             String request_uri = public_func.get_url(battery_service.bot_token, "sendMessage");
             final message_json request_body = new message_json();
             request_body.chat_id = battery_service.chat_id;
-            StringBuilder message_body = new StringBuilder(context.getString(R.string.system_message_head) + "\n");
+            String status = "";
             final String action = intent.getAction();
             switch (Objects.requireNonNull(action)) {
                 case Intent.ACTION_BATTERY_OKAY:
-                    message_body.append(context.getString(R.string.low_battery_status_end));
+                    status = context.getString(R.string.low_battery_status_end);
                     break;
                 case Intent.ACTION_BATTERY_LOW:
-                    message_body.append(context.getString(R.string.battery_low));
+                    status = context.getString(R.string.battery_low);
                     break;
                 case Intent.ACTION_POWER_CONNECTED:
-                    message_body.append(context.getString(R.string.charger_connect));
+                    status = context.getString(R.string.charger_connect);
                     break;
                 case Intent.ACTION_POWER_DISCONNECTED:
-                    message_body.append(context.getString(R.string.charger_disconnect));
+                    status = context.getString(R.string.charger_disconnect);
                     break;
             }
             IntentFilter filter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
@@ -117,8 +117,10 @@ public class battery_service extends Service {
                 Log.d(TAG, "The previous battery is over 100%, and the correction is 100%.");
                 battery_level = 100;
             }
-            request_body.text = message_body.append("\n").append(context.getString(R.string.current_battery_level)).append(battery_level).append("%").toString();
+            request_body.text = message_template.get(context, message_template.BATTERY).render(status, String.valueOf(battery_level));
             OkHttpClient okhttp_client = public_func.get_okhttp_obj(battery_service.doh_switch);
+            final outbox outbox_log = outbox.get(context);
+            final long outbox_id = outbox_log.append(request_body.text);
             String request_body_raw = new Gson().toJson(request_body);
             RequestBody body = RequestBody.create(public_func.JSON, request_body_raw);
             Request request = new Request.Builder().url(request_uri).method("POST", body).build();
@@ -127,23 +129,32 @@ public class battery_service extends Service {
             call.enqueue(new Callback() {
                 @Override
                 public void onFailure(@NonNull Call call, @NonNull IOException e) {
-                    e.printStackTrace();
-                    public_func.write_log(context, error_head + e.getMessage());
-                    if (action.equals(Intent.ACTION_BATTERY_LOW)) {
-                        public_func.send_fallback_sms(context, request_body.text);
-                        public_func.add_resend_loop(context, request_body.text);
+                    try {
+                        e.printStackTrace();
+                        public_func.write_log(context, error_head + e.getMessage());
+                        if (action.equals(Intent.ACTION_BATTERY_LOW)) {
+                            public_func.send_fallback_sms(context, request_body.text);
+                            public_func.add_resend_loop(context, request_body.text);
+                        }
+                    } finally {
+                        outbox_log.ack(outbox_id);
                     }
                 }
 
                 @Override
                 public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
-                    if (response.code() != 200) {
-                        assert response.body() != null;
-                        public_func.write_log(context, error_head + response.code() + " " + response.body().string());
-                        public_func.add_resend_loop(context, request_body.text);
+                    try {
+                        if (response.code() != 200) {
+                            public_func.add_resend_loop(context, request_body.text);
+                            assert response.body() != null;
+                            public_func.write_log(context, error_head + response.code() + " " + response.body().string());
+                        }
+                    } finally {
+                        outbox_log.ack(outbox_id);
                     }
                 }
             });
+            outbox_log.finish_when_durable(outbox_id, goAsync());
 
 
         }
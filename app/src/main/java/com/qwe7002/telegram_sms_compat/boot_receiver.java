@@ -9,8 +9,6 @@ import android.util.Log;
 
 import org.jetbrains.annotations.NotNull;
 
-import java.util.ArrayList;
-
 
 import static android.content.Context.MODE_PRIVATE;
 
@@ -32,7 +30,7 @@ public class boot_receiver extends BroadcastReceiver {
             PaperCompat.init(context);
             public_func.write_log(context, "Received [" + intent.getAction() + "] broadcast, starting background service.");
             public_func.start_service(context, sharedPreferences.getBoolean("battery_monitoring_switch", false), sharedPreferences.getBoolean("chat_command", false));
-            if (PaperCompat.book().read("resend_list", new ArrayList<>()).size() != 0) {
+            if (resend_queue.size(context) != 0) {
                 Log.d(TAG, "An unsent message was detected, and the automatic resend process was initiated.");
                 public_func.start_resend(context);
             }
@@ -0,0 +1,132 @@
+package com.qwe7002.telegram_sms_compat;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * The bot's getMe result, kept in PaperCompat under a hash of the bot token so it survives
+ * restarts and is ignored as soon as the token changes. Lookups never block: a missing or
+ * stale identity is refreshed in the background while callers get what is cached.
+ */
+class bot_identity {
+    private static final String TAG = "bot_identity";
+    private static final long REFRESH_INTERVAL_MILLIS = 24 * 3600 * 1000L;
+    private static final long RETRY_INTERVAL_MILLIS = 60 * 1000L;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final AtomicBoolean refreshing = new AtomicBoolean(false);
+    private static long last_attempt = 0;
+
+    static final PaperKey<bot_identity> KEY = new PaperKey<>("bot_identity", new PaperCodecs.RecordCodec<bot_identity>() {
+        @Override
+        protected void write(bot_identity value, PaperCodecs.RecordWriter writer) {
+            writer.writeString(value.token_hash).writeLong(value.id).writeString(value.username).writeLong(value.fetched_at);
+        }
+
+        @Override
+        protected bot_identity read(PaperCodecs.RecordReader reader) {
+            return new bot_identity(reader.readString(), reader.readLong(), reader.readString(), reader.readLong());
+        }
+    }, null);
+
+    final String token_hash;
+    final long id;
+    final String username;
+    final long fetched_at;
+
+    private bot_identity(String token_hash, long id, String username, long fetched_at) {
+        this.token_hash = token_hash;
+        this.id = id;
+        this.username = username;
+        this.fetched_at = fetched_at;
+    }
+
+    /**
+     * @return the cached username for this token, or "" while it is not known yet.
+     */
+    @NotNull
+    static String get_username(@NotNull Context context, @NotNull OkHttpClient okhttp_client, @NotNull String bot_token) {
+        PaperCompat.init(context);
+        bot_identity identity = PaperCompat.book().read(KEY);
+        boolean valid = identity != null && identity.token_hash.equals(hash(bot_token));
+        if (!valid || System.currentTimeMillis() - identity.fetched_at > REFRESH_INTERVAL_MILLIS) {
+            refresh_async(context, okhttp_client, bot_token);
+        }
+        return valid ? identity.username : "";
+    }
+
+    static void invalidate(@NotNull Context context) {
+        synchronized (bot_identity.class) {
+            last_attempt = 0;
+        }
+        PaperCompat.init(context);
+        PaperCompat.book().delete(KEY);
+    }
+
+    private static void refresh_async(@NotNull Context context, @NotNull OkHttpClient okhttp_client, @NotNull String bot_token) {
+        synchronized (bot_identity.class) {
+            long now = System.currentTimeMillis();
+            if (now - last_attempt < RETRY_INTERVAL_MILLIS || !refreshing.compareAndSet(false, true)) {
+                return;
+            }
+            last_attempt = now;
+        }
+        Request request = new Request.Builder().url(public_func.get_url(bot_token, "getMe")).build();
+        okhttp_client.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(@NotNull Call call, @NotNull IOException e) {
+                refreshing.set(false);
+                public_func.write_log(context, "Get username failed:" + e.getMessage());
+            }
+
+            @Override
+            public void onResponse(@NotNull Call call, @NotNull Response response) throws IOException {
+                try {
+                    if (response.code() != 200 || response.body() == null) {
+                        public_func.write_log(context, "Get username failed:" + response.code());
+                        return;
+                    }
+                    JsonObject result_obj = JsonParser.parseString(response.body().string()).getAsJsonObject();
+                    if (result_obj.get("ok").getAsBoolean()) {
+                        JsonObject bot_obj = result_obj.get("result").getAsJsonObject();
+                        bot_identity identity = new bot_identity(hash(bot_token), bot_obj.get("id").getAsLong(), bot_obj.get("username").getAsString(), System.currentTimeMillis());
+                        PaperCompat.book().write(KEY, identity);
+                        Log.d(TAG, "bot_username: " + identity.username);
+                    }
+                } finally {
+                    response.close();
+                    refreshing.set(false);
+                }
+            }
+        });
+    }
+
+    static String hash(String bot_token) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bot_token.getBytes(UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte item : digest) {
+                hex.append(Character.forDigit((item >> 4) & 0xf, 16)).append(Character.forDigit(item & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(bot_token.hashCode());
+        }
+    }
+}
@@ -68,7 +68,9 @@ public class call_receiver extends BroadcastReceiver {
                 String request_uri = public_func.get_url(bot_token, "sendMessage");
                 final message_json request_body = new message_json();
                 request_body.chat_id = chat_id;
-                request_body.text = "[" + context.getString(R.string.missed_call_head) + "]" + "\n" + context.getString(R.string.Incoming_number) + incoming_number;
+                request_body.text = message_template.get(context, message_template.MISSED_CALL).render(incoming_number);
+                final outbox outbox_log = outbox.get(context);
+                final long outbox_id = outbox_log.append(request_body.text);
                 String request_body_raw = new Gson().toJson(request_body);
                 RequestBody body = RequestBody.create(public_func.JSON, request_body_raw);
                 OkHttpClient okhttp_client = public_func.get_okhttp_obj(sharedPreferences.getBoolean("doh_switch", true));
@@ -78,20 +80,29 @@ public class call_receiver extends BroadcastReceiver {
                 call.enqueue(new Callback() {
                     @Override
                     public void onFailure(@NonNull Call call, @NonNull IOException e) {
-                        e.printStackTrace();
-                        public_func.write_log(context, error_head + e.getMessage());
-                        public_func.send_fallback_sms(context, request_body.text);
-                        public_func.add_resend_loop(context, request_body.text);
+                        try {
+                            e.printStackTrace();
+                            public_func.write_log(context, error_head + e.getMessage());
+                            public_func.send_fallback_sms(context, request_body.text);
+                            public_func.add_resend_loop(context, request_body.text);
+                        } finally {
+                            outbox_log.ack(outbox_id);
+                        }
                     }
 
                     @Override
                     public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
                         assert response.body() != null;
                         if (response.code() != 200) {
-                            public_func.write_log(context, error_head + response.code() + " " + response.body().string());
-                            public_func.send_fallback_sms(context, request_body.text);
-                            public_func.add_resend_loop(context, request_body.text);
+                            try {
+                                public_func.send_fallback_sms(context, request_body.text);
+                                public_func.add_resend_loop(context, request_body.text);
+                                public_func.write_log(context, error_head + response.code() + " " + response.body().string());
+                            } finally {
+                                outbox_log.ack(outbox_id);
+                            }
                         } else {
+                            outbox_log.ack(outbox_id);
                             String result = response.body().string();
                             JsonObject result_obj = JsonParser.parseString(result).getAsJsonObject().get("result").getAsJsonObject();
                             String message_id = result_obj.get("message_id").getAsString();
@@ -99,7 +110,7 @@ public class call_receiver extends BroadcastReceiver {
                                 public_func.write_log(context, "[" + incoming_number + "] Not a regular phone number.");
                                 return;
                             }
-                            public_func.add_message_list(message_id, incoming_number);
+                            public_func.add_message_list(context, message_id, incoming_number);
                         }
                     }
                 });
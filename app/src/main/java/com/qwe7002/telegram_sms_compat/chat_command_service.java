@@ -1,7 +1,8 @@
 package com.qwe7002.telegram_sms_compat;
 
-import android.annotation.SuppressLint;
+import android.app.AlarmManager;
 import android.app.Notification;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -9,25 +10,27 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
-import android.net.wifi.WifiManager;
 import android.os.BatteryManager;
 import android.os.IBinder;
-import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
+import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.net.SocketTimeoutException;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import okhttp3.Call;
@@ -39,24 +42,29 @@ import okhttp3.Response;
 
 
 public class chat_command_service extends Service {
-    private static long offset = 0;
-    private static int magnification = 1;
-    private static int error_magnification = 1;
     private String chat_id;
     private String bot_token;
     private Context context;
     private OkHttpClient okhttp_client;
     private broadcast_receiver broadcast_receiver = null;
-    private PowerManager.WakeLock wakelock;
-    private WifiManager.WifiLock wifiLock;
+    private polling_locks locks;
+    private boolean duty_cycle;
+    private PendingIntent poll_alarm_intent;
+    private final Object poll_signal = new Object();
+    private boolean poll_alarm_fired = false;
+    private static final int DUTY_CYCLE_POLL_TIMEOUT = 10;
+    private static final String SPAM_SEPARATOR = "\n\n";
     private int send_sms_next_status = -1;
     private String send_to_temp;
-    private String bot_username = "";
     private final String TAG = "chat_command_service";
     static Thread thread_main;
-    private boolean have_bot_username = false;
     private boolean privacy_mode;
     private SharedPreferences sharedPreferences;
+    private update_checkpoint checkpoint;
+    private polling_controller controller;
+    private command_executor executor;
+    private command_router router;
+    private Set<String> allowed_updates;
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Notification notification = public_func.get_notification_obj(getApplicationContext(), getString(R.string.chat_command_service_name));
@@ -64,7 +72,6 @@ public class chat_command_service extends Service {
         return START_STICKY;
     }
 
-    @SuppressLint({"InvalidWakeLockTag", "WakelockTimeout"})
     @Override
     public void onCreate() {
         super.onCreate();
@@ -79,66 +86,104 @@ public class chat_command_service extends Service {
         bot_token = sharedPreferences.getString("bot_token", "");
         okhttp_client = public_func.get_okhttp_obj(sharedPreferences.getBoolean("doh_switch", true));
         privacy_mode = sharedPreferences.getBoolean("privacy_mode", false);
-        wifiLock = ((WifiManager) Objects.requireNonNull(context.getApplicationContext().getSystemService(Context.WIFI_SERVICE))).createWifiLock(WifiManager.WIFI_MODE_FULL, "bot_command_polling_wifi");
-        wakelock = ((PowerManager) Objects.requireNonNull(context.getSystemService(Context.POWER_SERVICE))).newWakeLock(android.os.PowerManager.PARTIAL_WAKE_LOCK, "bot_command_polling");
-        wifiLock.setReferenceCounted(false);
-        wakelock.setReferenceCounted(false);
-        if(!wifiLock.isHeld()){
-            wifiLock.acquire();
-        }
-        if (!wakelock.isHeld()) {
-            wakelock.acquire();
+        checkpoint = new update_checkpoint(context, bot_token);
+        controller = new polling_controller(context);
+        executor = new command_executor(2, 32);
+        register_commands();
+        // Commands, replies and the send-SMS dialog arrive as messages. Channel posts can only
+        // come from the configured chat when it is a channel, and user ids are never negative.
+        allowed_updates = new LinkedHashSet<>();
+        allowed_updates.add("message");
+        if (chat_id.startsWith("-")) {
+            allowed_updates.add("channel_post");
         }
+        duty_cycle = sharedPreferences.getBoolean("duty_cycle_polling", false);
+        poll_alarm_intent = PendingIntent.getBroadcast(context, 0, new Intent(public_func.BROADCAST_POLL_ALARM).setPackage(context.getPackageName()), 0);
+        locks = new polling_locks(context);
+        locks.acquire();
         thread_main = new Thread(new thread_main_runnable());
         thread_main.start();
         IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(public_func.BROADCAST_STOP_SERVICE);
         intentFilter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
+        intentFilter.addAction(public_func.BROADCAST_POLL_ALARM);
         broadcast_receiver = new broadcast_receiver();
         registerReceiver(broadcast_receiver, intentFilter);
 
 
     }
 
-    private void receive_handle(JsonObject result_obj) {
+    /**
+     * Called on the polling thread; the handler itself runs on the executor so a slow
+     * command never delays the next getUpdates.
+     *
+     * @return false for an update delivered again while it is still being handled.
+     */
+    private boolean receive_handle(update_json update) {
+        if (!checkpoint.begin(update.update_id)) {
+            return false;
+        }
+        if (update.message == null) {
+            // Not a type we asked for, nothing to do beyond moving the offset past it.
+            checkpoint.complete(update.update_id);
+            return true;
+        }
+        controller.on_activity();
+        String chat_key = update.message.chat != null ? update.message.chat.id : "";
+        executor.execute(chat_key, () -> {
+            try {
+                if (checkpoint.is_handled(update.update_id)) {
+                    Log.i(TAG, "receive_handle: Update " + update.update_id + " was already handled, skipped.");
+                } else {
+                    handle_update(update);
+                }
+            } finally {
+                checkpoint.complete(update.update_id);
+            }
+            process_stats.publish(context, "commands", executor.get_stats());
+        });
+        return true;
+    }
+
+    private void send_sms_once(long update_id, String send_to, String content) {
+        checkpoint.mark_handled(update_id);
+        public_func.send_sms(context, send_to, content);
+    }
+
+    private void handle_update(update_json update) {
         String message_type = "";
-        long update_id = result_obj.get("update_id").getAsLong();
-        offset = update_id + 1;
         final message_json request_body = new message_json();
         request_body.chat_id = chat_id;
-        JsonObject message_obj = null;
-        if (result_obj.has("message")) {
-            message_obj = result_obj.get("message").getAsJsonObject();
-            message_type = message_obj.get("chat").getAsJsonObject().get("type").getAsString();
-        }
-        if (result_obj.has("channel_post")) {
-            message_type = "channel";
-            message_obj = result_obj.get("channel_post").getAsJsonObject();
+        update_json.message message_obj = update.message;
+        if (message_obj != null) {
+            message_type = update.is_channel_post ? "channel" : message_obj.chat.type;
         }
         if (message_obj == null) {
             //Reject group request
             public_func.write_log(context, "Request type is not allowed by security policy.");
             return;
         }
-        JsonObject from_obj = null;
+        String from_id = null;
         final boolean message_type_is_private = message_type.equals("private");
-        if (!message_type_is_private && !have_bot_username) {
-            Log.i(TAG, "receive_handle: Did not successfully get bot_username.");
-            get_me();
+        String bot_username = "";
+        if (!message_type_is_private) {
+            bot_username = bot_identity.get_username(context, okhttp_client, bot_token);
+            if (bot_username.equals("")) {
+                Log.i(TAG, "receive_handle: Did not successfully get bot_username.");
+            }
         }
-        if (message_obj.has("from")) {
-            from_obj = message_obj.get("from").getAsJsonObject();
-            if (!message_type_is_private && from_obj.get("is_bot").getAsBoolean()) {
+        if (message_obj.from != null) {
+            from_id = message_obj.from.id;
+            if (!message_type_is_private && message_obj.from.is_bot) {
                 Log.i(TAG, "receive_handle: receive from bot.");
                 return;
             }
         }
-        if (message_obj.has("chat")) {
-            from_obj = message_obj.get("chat").getAsJsonObject();
+        if (message_obj.chat != null) {
+            from_id = message_obj.chat.id;
         }
 
-        assert from_obj != null;
-        String from_id = from_obj.get("id").getAsString();
+        assert from_id != null;
         if (!chat_id.equals(from_id)) {
             public_func.write_log(context, "Chat ID[" + from_id + "] not allow");
             return;
@@ -146,14 +191,11 @@ public class chat_command_service extends Service {
 
         String command = "";
         String command_bot_username = "";
-        String request_msg = "";
-        if (message_obj.has("text")) {
-            request_msg = message_obj.get("text").getAsString();
-        }
-        if (message_obj.has("reply_to_message")) {
-            String phone_number = PaperCompat.book().read(message_obj.get("reply_to_message").getAsJsonObject().get("message_id").getAsString(), null);
+        String request_msg = message_obj.text;
+        if (message_obj.reply_to_message_id != 0) {
+            String phone_number = reply_index.get(context).lookup(message_obj.reply_to_message_id);
             if (phone_number != null) {
-                public_func.send_sms(context, phone_number, request_msg);
+                send_sms_once(update.update_id, phone_number, request_msg);
                 return;
             }
             if (!message_type_is_private) {
@@ -161,14 +203,13 @@ public class chat_command_service extends Service {
                 return;
             }
         }
-        if (message_obj.has("entities")) {
+        if (message_obj.first_entity != null) {
             String temp_command;
             String temp_command_lowercase;
-            JsonArray entities_arr = message_obj.get("entities").getAsJsonArray();
-            JsonObject entities_obj_command = entities_arr.get(0).getAsJsonObject();
-            if (entities_obj_command.get("type").getAsString().equals("bot_command")) {
-                int command_offset = entities_obj_command.get("offset").getAsInt();
-                int command_end_offset = command_offset + entities_obj_command.get("length").getAsInt();
+            update_json.entity entities_obj_command = message_obj.first_entity;
+            if (entities_obj_command.type.equals("bot_command")) {
+                int command_offset = entities_obj_command.offset;
+                int command_end_offset = command_offset + entities_obj_command.length;
                 temp_command = request_msg.substring(command_offset, command_end_offset).trim();
                 temp_command_lowercase = temp_command.toLowerCase();
                 command = temp_command_lowercase;
@@ -184,100 +225,22 @@ public class chat_command_service extends Service {
             return;
         }
 
-        boolean has_command = false;
-        switch (command) {
-            case "/help":
-            case "/start":
-            case "/commandlist":
-                request_body.text = getString(R.string.system_message_head) + "\n" + getString(R.string.available_command) + "\n" + getString(R.string.sendsms) + "\n" + getString(R.string.get_spam_sms);
-                if (!message_type_is_private && privacy_mode && !bot_username.equals("")) {
-                    request_body.text = request_body.text.replace(" -", "@" + bot_username + " -");
-                }
-                if (command.equals("/commandlist")) {
-                    request_body.text = request_body.text.replace("/", "");
-                }
-                has_command = true;
-                break;
-            case "/ping":
-            case "/getinfo":
-                String spam_count = "";
-                ArrayList<String> spam_list = PaperCompat.book().read("spam_sms_list", new ArrayList<>());
-                if (spam_list.size() != 0) {
-                    spam_count = "\n" + getString(R.string.spam_count_title) + spam_list.size();
-                }
-                request_body.text = getString(R.string.system_message_head) + "\n" + context.getString(R.string.current_battery_level) + get_battery_info(context) + "\n" + getString(R.string.current_network_connection_status) + public_func.get_network_type(context) + spam_count + "\nSIM: " + public_func.get_sim_name(context);
-                has_command = true;
-                break;
-            case "/log":
-                request_body.text = getString(R.string.system_message_head) + public_func.read_log(context, 10);
-                has_command = true;
-                break;
-            case "/getspamsms":
-                ArrayList<String> spam_sms_list = PaperCompat.book().read("spam_sms_list", new ArrayList<>());
-                if (spam_sms_list.size() == 0) {
-                    request_body.text = context.getString(R.string.system_message_head) + "\n" + getString(R.string.no_spam_history);
-                    break;
-                }
-                new Thread(() -> {
-                    if (public_func.check_network_status(context)) {
-                        OkHttpClient okhttp_client = public_func.get_okhttp_obj(sharedPreferences.getBoolean("doh_switch", true));
-                        for (String item : spam_sms_list) {
-                            message_json send_sms_request_body = new message_json();
-                            send_sms_request_body.chat_id = chat_id;
-                            send_sms_request_body.text = item;
-                            String request_uri = public_func.get_url(bot_token, "sendMessage");
-                            String request_body_json = new Gson().toJson(send_sms_request_body);
-                            RequestBody body = RequestBody.create(public_func.JSON, request_body_json);
-                            Request request_obj = new Request.Builder().url(request_uri).method("POST", body).build();
-                            Call call = okhttp_client.newCall(request_obj);
-                            call.enqueue(new Callback() {
-                                @Override
-                                public void onFailure(@NotNull Call call, @NotNull IOException e) {
-                                    Log.d(TAG, "onFailure: ");
-                                }
-
-                                @Override
-                                public void onResponse(@NotNull Call call, @NotNull Response response) {
-
-                                }
-                            });
-                            ArrayList<String> resend_list_local = PaperCompat.book().read("spam_sms_list", new ArrayList<>());
-                            resend_list_local.remove(item);
-                            PaperCompat.book().write("spam_sms_list", resend_list_local);
-                        }
-                    }
-                    public_func.write_log(context, "Send spam message is complete.");
-                }).start();
+        boolean has_command;
+        String username_state = !message_type_is_private && privacy_mode ? bot_username : "";
+        command_router.result result = router.dispatch(new command_router.request(command, request_msg, message_type_is_private, update.update_id, username_state));
+        if (result == null) {
+            if (!message_type_is_private) {
+                Log.i(TAG, "receive_handle: The conversation is not Private and does not prompt an error.");
                 return;
-            case "/sendsms":
-                String[] msg_send_list = request_msg.split("\n");
-                if (msg_send_list.length > 2) {
-                    String msg_send_to = public_func.get_send_phone_number(msg_send_list[1]);
-                    if (public_func.is_phone_number(msg_send_to)) {
-                        StringBuilder msg_send_content = new StringBuilder();
-                        for (int i = 2; i < msg_send_list.length; ++i) {
-                            if (msg_send_list.length != 3 && i != 2) {
-                                msg_send_content.append("\n");
-                            }
-                            msg_send_content.append(msg_send_list[i]);
-                        }
-                        public_func.send_sms(context, msg_send_to, msg_send_content.toString());
-                        return;
-                    }
-                    has_command = true;
-                } else if (message_type_is_private) {
-                    send_sms_next_status = SEND_SMS_STATUS.PHONE_INPUT_STATUS;
-                    has_command = false;
-                }
-                request_body.text = "[" + context.getString(R.string.send_sms_head) + "]" + "\n" + getString(R.string.failed_to_get_information);
-                break;
-            default:
-                if (!message_type_is_private) {
-                    Log.i(TAG, "receive_handle: The conversation is not Private and does not prompt an error.");
-                    return;
-                }
-                request_body.text = context.getString(R.string.system_message_head) + "\n" + getString(R.string.unknown_command);
-                break;
+            }
+            request_body.text = context.getString(R.string.system_message_head) + "\n" + getString(R.string.unknown_command);
+            has_command = false;
+        } else {
+            if (result.text == null) {
+                return;
+            }
+            request_body.text = result.text;
+            has_command = result.is_command;
         }
         if (has_command) {
             send_sms_next_status = SEND_SMS_STATUS.STANDBY_STATUS;
@@ -306,7 +269,7 @@ public class chat_command_service extends Service {
                     }
                     break;
                 case SEND_SMS_STATUS.WAITING_TO_SEND_STATUS:
-                    public_func.send_sms(context, send_to_temp, request_msg);
+                    send_sms_once(update.update_id, send_to_temp, request_msg);
                     return;
             }
             request_body.text = "[" + context.getString(R.string.send_sms_head) + "]" + "\n" + result_send;
@@ -334,6 +297,165 @@ public class chat_command_service extends Service {
         });
     }
 
+    private void register_commands() {
+        router = new command_router();
+        router.register(new command_router.handler(command_router.OUTPUT_STATIC, R.string.command_help, "", "/help", "/start", "/commandlist") {
+            @NotNull
+            @Override
+            command_router.result handle(@NotNull command_router.request request) {
+                boolean command_list = request.command.equals("/commandlist");
+                StringBuilder text = new StringBuilder(getString(R.string.system_message_head)).append("\n").append(getString(R.string.available_command));
+                for (command_router.handler handler : router.get_handlers()) {
+                    text.append("\n");
+                    if (command_list) {
+                        // The format BotFather takes for the command menu.
+                        text.append(handler.names[0].substring(1)).append(" - ").append(getString(handler.description));
+                        continue;
+                    }
+                    text.append(handler.names[0]);
+                    if (!request.username_state.equals("")) {
+                        text.append("@").append(request.username_state);
+                    }
+                    if (!handler.arguments.equals("")) {
+                        text.append(handler.arguments.contains("\n") ? "\n" : " ").append(handler.arguments);
+                    }
+                    text.append(" - ").append(getString(handler.description));
+                }
+                return command_router.result.reply(text.toString());
+            }
+        });
+        router.register(new command_router.handler(command_router.OUTPUT_DYNAMIC, R.string.command_getinfo, "", "/getinfo", "/ping") {
+            @NotNull
+            @Override
+            command_router.result handle(@NotNull command_router.request request) {
+                String spam_count = "";
+                long spam_size = spam_archive.size(context);
+                if (spam_size != 0) {
+                    spam_count = "\n" + getString(R.string.spam_count_title) + spam_size;
+                }
+                return command_router.result.reply(getString(R.string.system_message_head) + "\n" + context.getString(R.string.current_battery_level) + get_battery_info(context) + "\n" + getString(R.string.current_network_connection_status) + public_func.get_network_type(context) + spam_count + "\nSIM: " + public_func.get_sim_name(context));
+            }
+        });
+        router.register(new command_router.handler(command_router.OUTPUT_DYNAMIC, R.string.command_log, "", "/log") {
+            @NotNull
+            @Override
+            command_router.result handle(@NotNull command_router.request request) {
+                return command_router.result.reply(getString(R.string.system_message_head) + public_func.read_log(context, 10));
+            }
+        });
+        router.register(new command_router.handler(command_router.OUTPUT_DYNAMIC, R.string.command_stats, "", "/stats") {
+            @NotNull
+            @Override
+            command_router.result handle(@NotNull command_router.request request) {
+                Map<String, Object> stats = new LinkedHashMap<>();
+                stats.put("commands", router.get_stats());
+                stats.put("executor", executor.get_stats());
+                stats.put("polling", controller.get_stats());
+                stats.put("locks", locks.get_stats());
+                return command_router.result.reply(getString(R.string.system_message_head) + "\n" + new GsonBuilder().setPrettyPrinting().create().toJson(stats));
+            }
+        });
+        router.register(new command_router.handler(command_router.OUTPUT_SIDE_EFFECT, R.string.command_getspamsms, "[page]", "/getspamsms") {
+            @NotNull
+            @Override
+            command_router.result handle(@NotNull command_router.request request) {
+                String[] arguments = request.text.trim().split("\\s+");
+                int page_number = 1;
+                if (arguments.length > 1) {
+                    try {
+                        page_number = Math.max(1, Integer.parseInt(arguments[1]));
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+                final int number = page_number;
+                if (spam_archive.size(context) == 0) {
+                    return command_router.result.reply_in_dialog(context.getString(R.string.system_message_head) + "\n" + getString(R.string.no_spam_history));
+                }
+                new Thread(() -> send_spam_sms(number)).start();
+                return command_router.result.silent();
+            }
+        });
+        router.register(new command_router.handler(command_router.OUTPUT_SIDE_EFFECT, R.string.command_sendsms, "<phone number>\n<message>", "/sendsms") {
+            @NotNull
+            @Override
+            command_router.result handle(@NotNull command_router.request request) {
+                String failed_text = "[" + context.getString(R.string.send_sms_head) + "]" + "\n" + getString(R.string.failed_to_get_information);
+                String[] msg_send_list = request.text.split("\n");
+                if (msg_send_list.length > 2) {
+                    String msg_send_to = public_func.get_send_phone_number(msg_send_list[1]);
+                    if (public_func.is_phone_number(msg_send_to)) {
+                        StringBuilder msg_send_content = new StringBuilder();
+                        for (int i = 2; i < msg_send_list.length; ++i) {
+                            if (msg_send_list.length != 3 && i != 2) {
+                                msg_send_content.append("\n");
+                            }
+                            msg_send_content.append(msg_send_list[i]);
+                        }
+                        send_sms_once(request.update_id, msg_send_to, msg_send_content.toString());
+                        return command_router.result.silent();
+                    }
+                    return command_router.result.reply(failed_text);
+                }
+                if (request.is_private) {
+                    send_sms_next_status = SEND_SMS_STATUS.PHONE_INPUT_STATUS;
+                }
+                return command_router.result.reply_in_dialog(failed_text);
+            }
+        });
+    }
+
+    /**
+     * Sends one page of the spam archive as a single message. Delivering the first page removes
+     * its entries; later pages are only shown, since the archive is cleared from the oldest end.
+     */
+    private void send_spam_sms(int number) {
+        if (!public_func.check_network_status(context)) {
+            return;
+        }
+        String head = getString(R.string.system_message_head) + "\n";
+        String footer = "\n\n" + getString(R.string.spam_page_title) + number + "/";
+        // Room for the page count and the head, within Telegram's 4096-character limit.
+        spam_archive.page page = spam_archive.read_page(context, number, 4096 - head.length() - footer.length() - 8, SPAM_SEPARATOR);
+        if (page == null) {
+            public_func.write_log(context, "Failed to read spam page " + number + ".");
+            return;
+        }
+        StringBuilder text = new StringBuilder(head);
+        if (page.items.isEmpty()) {
+            text.append(getString(R.string.spam_page_missing, number, page.count));
+        } else {
+            for (int i = 0; i < page.items.size(); ++i) {
+                if (i != 0) {
+                    text.append(SPAM_SEPARATOR);
+                }
+                text.append(page.items.get(i));
+            }
+            text.append(footer).append(page.count);
+        }
+        message_json send_sms_request_body = new message_json();
+        send_sms_request_body.chat_id = chat_id;
+        send_sms_request_body.text = text.toString();
+        String request_uri = public_func.get_url(bot_token, "sendMessage");
+        RequestBody body = RequestBody.create(public_func.JSON, new Gson().toJson(send_sms_request_body));
+        Request request_obj = new Request.Builder().url(request_uri).method("POST", body).build();
+        OkHttpClient okhttp_client = public_func.get_okhttp_obj(sharedPreferences.getBoolean("doh_switch", true));
+        try {
+            Response response = okhttp_client.newCall(request_obj).execute();
+            response.close();
+            if (response.code() != 200) {
+                public_func.write_log(context, "Send spam message failed:" + response.code());
+                return;
+            }
+        } catch (IOException e) {
+            public_func.write_log(context, "Send spam message failed:" + e.getMessage());
+            return;
+        }
+        if (page.number == 1 && !page.items.isEmpty()) {
+            spam_archive.remove_until(context, page.end);
+        }
+        public_func.write_log(context, "Send spam message is complete.");
+    }
+
     private static class SEND_SMS_STATUS {
         public static final int STANDBY_STATUS = -1;
         public static final int PHONE_INPUT_STATUS = 0;
@@ -343,44 +465,14 @@ public class chat_command_service extends Service {
 
     @Override
     public void onDestroy() {
-        wifiLock.release();
-        wakelock.release();
+        executor.shutdown();
+        ((AlarmManager) Objects.requireNonNull(context.getSystemService(Context.ALARM_SERVICE))).cancel(poll_alarm_intent);
+        locks.release();
         unregisterReceiver(broadcast_receiver);
         stopForeground(true);
         super.onDestroy();
     }
 
-    private void get_me() {
-        OkHttpClient okhttp_client_new = okhttp_client;
-        String request_uri = public_func.get_url(bot_token, "getMe");
-        Request request = new Request.Builder().url(request_uri).build();
-        Call call = okhttp_client_new.newCall(request);
-        Response response;
-        try {
-            response = call.execute();
-        } catch (IOException e) {
-            e.printStackTrace();
-            public_func.write_log(context, "Get username failed:" + e.getMessage());
-            return;
-        }
-        if (response.code() == 200) {
-            String result = null;
-            try {
-                result = Objects.requireNonNull(response.body()).string();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            assert result != null;
-            JsonObject result_obj = JsonParser.parseString(result).getAsJsonObject();
-            if (result_obj.get("ok").getAsBoolean()) {
-                bot_username = result_obj.get("result").getAsJsonObject().get("username").getAsString();
-                have_bot_username = true;
-                Log.d(TAG, "bot_username: " + bot_username);
-            }
-        }
-
-    }
-
     @Override
     public IBinder onBind(Intent intent) {
         return null;
@@ -391,40 +483,51 @@ public class chat_command_service extends Service {
         @Override
         public void run() {
             Log.d(TAG, "run: thread main start");
-            if (public_func.parse_long(chat_id) < 0 && !have_bot_username) {
-                new Thread(chat_command_service.this::get_me).start();
+            if (public_func.parse_long(chat_id) < 0) {
+                // Warm the cached identity before the first group command arrives.
+                bot_identity.get_username(context, okhttp_client, bot_token);
             }
             while (true) {
-                int timeout = 5 * magnification;
+                locks.acquire();
+                int timeout = controller.next_timeout();
+                if (duty_cycle && controller.is_idle()) {
+                    // The locks are held for the whole request, so keep idle polls short.
+                    timeout = Math.min(timeout, DUTY_CYCLE_POLL_TIMEOUT);
+                }
+                // Leave the server room to answer at the end of its hold.
                 OkHttpClient okhttp_client_new = okhttp_client.newBuilder()
-                        .readTimeout((timeout), TimeUnit.SECONDS)
+                        .readTimeout((timeout + 5), TimeUnit.SECONDS)
                         .writeTimeout((timeout), TimeUnit.SECONDS)
                         .build();
                 String request_uri = public_func.get_url(bot_token, "getUpdates");
                 polling_json request_body = new polling_json();
-                request_body.offset = offset;
+                request_body.offset = checkpoint.get_request_offset();
                 request_body.timeout = timeout;
+                request_body.allowed_updates = allowed_updates.toArray(new String[0]);
                 RequestBody body = RequestBody.create(public_func.JSON, new Gson().toJson(request_body));
                 Request request = new Request.Builder().url(request_uri).method("POST", body).build();
                 Call call = okhttp_client_new.newCall(request);
                 Response response;
+                long poll_start = SystemClock.elapsedRealtime();
                 try {
                     response = call.execute();
-                    error_magnification = 1;
                 } catch (IOException e) {
                     e.printStackTrace();
                     if (!public_func.check_network_status(context)) {
                         public_func.write_log(context, "No network connections available. ");
-                        error_magnification = 1;
-                        magnification = 1;
+                        controller.reset();
+                        if (duty_cycle) {
+                            locks.release();
+                        }
                         Log.d(TAG, "run: break while.");
                         break;
                     }
-                    int sleep_time = 5 * error_magnification;
+                    int sleep_time = controller.on_poll_failure(e instanceof SocketTimeoutException);
+                    process_stats.publish(context, "polling", controller.get_stats());
                     public_func.write_log(context, "Connection to the Telegram API service failed,try again after " + sleep_time + " seconds.");
-                    magnification = 1;
-                    if (error_magnification <= 59) {
-                        ++error_magnification;
+                    if (duty_cycle) {
+                        sleep_until_alarm(sleep_time);
+                        continue;
                     }
                     try {
                         Thread.sleep(sleep_time * 1000);
@@ -434,24 +537,40 @@ public class chat_command_service extends Service {
                     continue;
 
                 }
+                long hold_millis = SystemClock.elapsedRealtime() - poll_start;
                 if (response.code() == 200) {
                     assert response.body() != null;
-                    String result;
+                    final int[] update_count = {0};
+                    final int[] repeated_count = {0};
                     try {
-                        result = Objects.requireNonNull(response.body()).string();
-                    } catch (IOException e) {
+                        update_reader.read(Objects.requireNonNull(response.body()).charStream(), allowed_updates, update -> {
+                            if (receive_handle(update)) {
+                                ++update_count[0];
+                            } else {
+                                ++repeated_count[0];
+                            }
+                        });
+                    } catch (IOException | RuntimeException e) {
                         e.printStackTrace();
+                        public_func.write_log(context, "Failed to read updates:" + e.getMessage());
                         continue;
+                    } finally {
+                        response.close();
+                        checkpoint.commit();
                     }
-                    JsonObject result_obj = JsonParser.parseString(result).getAsJsonObject();
-                    if (result_obj.get("ok").getAsBoolean()) {
-                        JsonArray result_array = result_obj.get("result").getAsJsonArray();
-                        for (JsonElement item : result_array) {
-                            receive_handle(item.getAsJsonObject());
+                    if (update_count[0] == 0 && repeated_count[0] > 0) {
+                        // Only updates that are still being handled came back; wait for one to finish.
+                        try {
+                            checkpoint.await_progress(timeout * 1000L);
+                        } catch (InterruptedException e) {
+                            e.printStackTrace();
                         }
                     }
-                    if (magnification <= 11) {
-                        ++magnification;
+                    controller.on_poll_success(timeout, hold_millis, update_count[0]);
+                    process_stats.publish(context, "polling", controller.get_stats());
+                    process_stats.publish(context, "locks", locks.get_stats());
+                    if (duty_cycle && controller.is_idle() && executor.pending() == 0) {
+                        sleep_until_alarm(controller.next_idle_interval());
                     }
                 } else {
                     public_func.write_log(context, "response code:" + response.code());
@@ -475,6 +594,27 @@ public class chat_command_service extends Service {
             }
         }
     }
+    /**
+     * Duty-cycled mode: drops the locks and lets the device sleep until an alarm wakes the poller.
+     */
+    private void sleep_until_alarm(int seconds) {
+        AlarmManager alarm_manager = (AlarmManager) Objects.requireNonNull(context.getSystemService(Context.ALARM_SERVICE));
+        synchronized (poll_signal) {
+            poll_alarm_fired = false;
+            alarm_manager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, SystemClock.elapsedRealtime() + seconds * 1000L, poll_alarm_intent);
+            locks.release();
+            while (!poll_alarm_fired) {
+                try {
+                    poll_signal.wait();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    break;
+                }
+            }
+        }
+        locks.acquire();
+    }
+
     private String get_battery_info(Context context) {
         IntentFilter filter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
         Intent batteryStatus = context.registerReceiver(null, filter);
@@ -522,6 +662,14 @@ public class chat_command_service extends Service {
                     stopSelf();
                     android.os.Process.killProcess(android.os.Process.myPid());
                     break;
+                case public_func.BROADCAST_POLL_ALARM:
+                    // Take the locks before returning, while the alarm still keeps the CPU awake.
+                    locks.acquire();
+                    synchronized (poll_signal) {
+                        poll_alarm_fired = true;
+                        poll_signal.notifyAll();
+                    }
+                    break;
                 case ConnectivityManager.CONNECTIVITY_ACTION:
                     if (public_func.check_network_status(context)) {
                         if (!thread_main.isAlive()) {
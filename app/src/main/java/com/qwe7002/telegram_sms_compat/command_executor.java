@@ -0,0 +1,115 @@
+package com.qwe7002.telegram_sms_compat;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs command handlers off the polling thread.
+ * Tasks for the same chat run one after another in submission order; different chats run
+ * in parallel on a small pool. At most {@code capacity} tasks may be pending, after which
+ * {@link #execute} blocks the poller instead of buffering without limit.
+ */
+class command_executor {
+    private static final String TAG = "command_executor";
+
+    private final ThreadPoolExecutor pool;
+    private final Semaphore permits;
+    private final int capacity;
+    private final Map<String, ArrayDeque<Runnable>> chat_queues = new HashMap<>();
+    private long task_count = 0;
+    private long queue_wait_total = 0;
+    private long queue_wait_max = 0;
+    private long execution_total = 0;
+    private long execution_max = 0;
+
+    command_executor(int threads, int capacity) {
+        this.capacity = capacity;
+        permits = new Semaphore(capacity);
+        pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), runnable -> {
+            Thread thread = new Thread(runnable, "command_worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    void execute(@NotNull String chat_key, @NotNull Runnable task) {
+        permits.acquireUninterruptibly();
+        final long queued_at = SystemClock.elapsedRealtime();
+        Runnable timed_task = () -> {
+            long start = SystemClock.elapsedRealtime();
+            try {
+                task.run();
+            } finally {
+                record(start - queued_at, SystemClock.elapsedRealtime() - start);
+                permits.release();
+            }
+        };
+        synchronized (chat_queues) {
+            ArrayDeque<Runnable> queue = chat_queues.get(chat_key);
+            if (queue != null) {
+                // A task of this chat is running; its worker picks this one up next.
+                queue.add(timed_task);
+                return;
+            }
+            chat_queues.put(chat_key, new ArrayDeque<Runnable>());
+        }
+        pool.execute(() -> run_chat(chat_key, timed_task));
+    }
+
+    int pending() {
+        return capacity - permits.availablePermits();
+    }
+
+    void shutdown() {
+        pool.shutdown();
+    }
+
+    synchronized Map<String, Object> get_stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("tasks", task_count);
+        stats.put("pending", capacity - permits.availablePermits());
+        stats.put("avgQueueWaitMillis", task_count == 0 ? 0 : queue_wait_total / task_count);
+        stats.put("maxQueueWaitMillis", queue_wait_max);
+        stats.put("avgExecutionMillis", task_count == 0 ? 0 : execution_total / task_count);
+        stats.put("maxExecutionMillis", execution_max);
+        return stats;
+    }
+
+    private void run_chat(String chat_key, Runnable first) {
+        Runnable next = first;
+        while (next != null) {
+            try {
+                next.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "run_chat: command failed", e);
+            }
+            synchronized (chat_queues) {
+                ArrayDeque<Runnable> queue = chat_queues.get(chat_key);
+                next = queue.poll();
+                if (next == null) {
+                    chat_queues.remove(chat_key);
+                }
+            }
+        }
+    }
+
+    private synchronized void record(long queue_wait, long execution) {
+        ++task_count;
+        queue_wait_total += queue_wait;
+        queue_wait_max = Math.max(queue_wait_max, queue_wait);
+        execution_total += execution;
+        execution_max = Math.max(execution_max, execution);
+    }
+}
@@ -0,0 +1,188 @@
+package com.qwe7002.telegram_sms_compat;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Registry of bot commands. Each handler declares its names, arguments, description and the
+ * kind of output it produces, from which /help is generated; static output is rendered once per locale and bot username state
+ * and served from a cache afterwards. Invocation counts and latency histograms are kept
+ * per command.
+ */
+class command_router {
+    static final int OUTPUT_STATIC = 0;
+    static final int OUTPUT_DYNAMIC = 1;
+    static final int OUTPUT_SIDE_EFFECT = 2;
+    private static final long[] LATENCY_BUCKETS_MILLIS = {1, 5, 20, 100, 500, 2000};
+
+    abstract static class handler {
+        final String[] names;
+        final String arguments;
+        final int description;
+        final int output;
+
+        /**
+         * @param description string resource shown in /help next to the first name.
+         * @param arguments   human readable argument list, empty when there is none; one per line
+         *                    when the command expects them on separate lines.
+         */
+        handler(int output, int description, @NotNull String arguments, @NotNull String... names) {
+            this.output = output;
+            this.description = description;
+            this.arguments = arguments;
+            this.names = names;
+        }
+
+        /**
+         * @return the reply, or {@link result#silent()} when the handler has already done its work.
+         */
+        @NotNull
+        abstract result handle(@NotNull request request);
+    }
+
+    static class request {
+        final String command;
+        final String text;
+        final boolean is_private;
+        final long update_id;
+        /**
+         * Bot username when replies must mention it, otherwise empty. Part of the static cache key.
+         */
+        final String username_state;
+
+        request(String command, String text, boolean is_private, long update_id, String username_state) {
+            this.command = command;
+            this.text = text;
+            this.is_private = is_private;
+            this.update_id = update_id;
+            this.username_state = username_state;
+        }
+    }
+
+    static class result {
+        final String text;
+        /**
+         * Whether this counts as a command, which ends the interactive send-SMS dialog.
+         */
+        final boolean is_command;
+
+        private result(String text, boolean is_command) {
+            this.text = text;
+            this.is_command = is_command;
+        }
+
+        static result reply(String text) {
+            return new result(text, true);
+        }
+
+        static result reply_in_dialog(String text) {
+            return new result(text, false);
+        }
+
+        static result silent() {
+            return new result(null, true);
+        }
+    }
+
+    private static class command_metrics {
+        long count = 0;
+        long total_nanos = 0;
+        final long[] buckets = new long[LATENCY_BUCKETS_MILLIS.length + 1];
+    }
+
+    private final Map<String, handler> handlers = new LinkedHashMap<>();
+    private final Map<String, command_metrics> metrics = new LinkedHashMap<>();
+    private final Map<String, result> static_cache = new HashMap<>();
+
+    synchronized void register(@NotNull handler handler) {
+        for (String name : handler.names) {
+            handlers.put(name, handler);
+            metrics.put(name, new command_metrics());
+        }
+    }
+
+    /**
+     * Every registered handler once, in registration order.
+     */
+    synchronized List<handler> get_handlers() {
+        List<handler> result = new ArrayList<>();
+        for (handler handler : handlers.values()) {
+            if (!result.contains(handler)) {
+                result.add(handler);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return null when no handler is registered for the command.
+     */
+    @Nullable
+    result dispatch(@NotNull request request) {
+        handler handler;
+        synchronized (this) {
+            handler = handlers.get(request.command);
+        }
+        if (handler == null) {
+            return null;
+        }
+        long start = System.nanoTime();
+        result result;
+        if (handler.output == OUTPUT_STATIC) {
+            String cache_key = Locale.getDefault().toString() + "|" + request.username_state + "|" + request.command;
+            synchronized (this) {
+                result = static_cache.get(cache_key);
+            }
+            if (result == null) {
+                result = handler.handle(request);
+                synchronized (this) {
+                    static_cache.put(cache_key, result);
+                }
+            }
+        } else {
+            result = handler.handle(request);
+        }
+        record(request.command, System.nanoTime() - start);
+        return result;
+    }
+
+    synchronized Map<String, Object> get_stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        for (Map.Entry<String, command_metrics> entry : metrics.entrySet()) {
+            command_metrics item = entry.getValue();
+            if (item.count == 0) {
+                continue;
+            }
+            Map<String, Object> command_stats = new LinkedHashMap<>();
+            command_stats.put("count", item.count);
+            command_stats.put("avgMicros", item.total_nanos / item.count / 1000);
+            Map<String, Long> histogram = new LinkedHashMap<>();
+            for (int i = 0; i < item.buckets.length; ++i) {
+                String label = i < LATENCY_BUCKETS_MILLIS.length ? "<=" + LATENCY_BUCKETS_MILLIS[i] + "ms" : ">" + LATENCY_BUCKETS_MILLIS[LATENCY_BUCKETS_MILLIS.length - 1] + "ms";
+                histogram.put(label, item.buckets[i]);
+            }
+            command_stats.put("latency", histogram);
+            stats.put(entry.getKey(), command_stats);
+        }
+        return stats;
+    }
+
+    private synchronized void record(String command, long nanos) {
+        command_metrics item = metrics.get(command);
+        ++item.count;
+        item.total_nanos += nanos;
+        long millis = nanos / 1000000;
+        int bucket = 0;
+        while (bucket < LATENCY_BUCKETS_MILLIS.length && millis > LATENCY_BUCKETS_MILLIS[bucket]) {
+            ++bucket;
+        }
+        ++item.buckets[bucket];
+    }
+}
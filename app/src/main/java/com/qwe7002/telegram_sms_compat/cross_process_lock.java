@@ -0,0 +1,87 @@
+package com.qwe7002.telegram_sms_compat;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Mutual exclusion between the main, :command and :battery processes.
+ * A ReentrantLock serializes threads inside one process (FileLock is held per JVM),
+ * and an exclusive lock on a file in the private files directory serializes processes.
+ */
+final class cross_process_lock {
+    private static final String TAG = "cross_process_lock";
+    private static final Map<String, cross_process_lock> instances = new HashMap<>();
+
+    private final File lock_file;
+    private final ReentrantLock thread_lock = new ReentrantLock();
+    private RandomAccessFile lock_raf;
+    private FileLock file_lock;
+
+    private cross_process_lock(File lock_file) {
+        this.lock_file = lock_file;
+    }
+
+    @NotNull
+    static cross_process_lock get(@NotNull Context context, @NotNull String name) {
+        synchronized (instances) {
+            cross_process_lock lock = instances.get(name);
+            if (lock == null) {
+                lock = new cross_process_lock(new File(context.getApplicationContext().getFilesDir(), name + ".lock"));
+                instances.put(name, lock);
+            }
+            return lock;
+        }
+    }
+
+    void lock() {
+        thread_lock.lock();
+        if (thread_lock.getHoldCount() > 1) {
+            return;
+        }
+        try {
+            lock_raf = new RandomAccessFile(lock_file, "rw");
+            file_lock = lock_raf.getChannel().lock();
+        } catch (IOException e) {
+            // Degrade to in-process locking rather than failing the caller.
+            Log.e(TAG, "Failed to acquire file lock: " + lock_file.getName(), e);
+            close_raf();
+        }
+    }
+
+    void unlock() {
+        if (thread_lock.getHoldCount() == 1) {
+            try {
+                if (file_lock != null) {
+                    file_lock.release();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                file_lock = null;
+                close_raf();
+            }
+        }
+        thread_lock.unlock();
+    }
+
+    private void close_raf() {
+        if (lock_raf != null) {
+            try {
+                lock_raf.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            lock_raf = null;
+        }
+    }
+}
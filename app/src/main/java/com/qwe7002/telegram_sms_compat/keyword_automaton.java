@@ -0,0 +1,27 @@
+package com.qwe7002.telegram_sms_compat;
+
+import com.github.sumimakito.codeauxlib.AhoCorasick;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * Keyword automaton that ignores case and folds full-width ASCII and the ideographic space to
+ * half-width, for matching user-entered keywords against SMS text.
+ */
+class keyword_automaton extends AhoCorasick {
+    keyword_automaton(@NotNull List<String> keywords) {
+        super(keywords);
+    }
+
+    @Override
+    protected char fold(char c) {
+        if (c >= '\uFF01' && c <= '\uFF5E') {
+            c = (char) (c - 0xFEE0);
+        } else if (c == '\u3000') {
+            c = ' ';
+        }
+        return Character.toLowerCase(c);
+    }
+}
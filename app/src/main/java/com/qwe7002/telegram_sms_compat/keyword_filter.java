@@ -0,0 +1,104 @@
+package com.qwe7002.telegram_sms_compat;
+
+import android.content.Context;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The spam keyword blacklist compiled into one Aho-Corasick automaton, so a message is checked
+ * against every keyword in a single pass. Keywords and messages are compared case-insensitively
+ * and with full-width ASCII folded to half-width. The automaton is rebuilt only when the stored
+ * list differs from the one it was built from. Hits are counted per keyword in PaperCompat.
+ */
+class keyword_filter {
+    private static keyword_filter compiled;
+    private static ArrayList<String> compiled_source;
+    private static long rebuild_count = 0;
+
+    private final ArrayList<String> keywords;
+    private final keyword_automaton automaton;
+
+    private keyword_filter(@NotNull List<String> keywords) {
+        this.keywords = new ArrayList<>(keywords);
+        automaton = new keyword_automaton(keywords);
+    }
+
+    @NotNull
+    static synchronized keyword_filter get(@NotNull Context context) {
+        PaperCompat.init(context);
+        ArrayList<String> source = PaperCompat.book().read(PaperKey.BLACK_KEYWORD_LIST);
+        if (compiled == null || !source.equals(compiled_source)) {
+            compiled = new keyword_filter(normalize(source));
+            compiled_source = source;
+            ++rebuild_count;
+        }
+        return compiled;
+    }
+
+    /**
+     * Stores a new blacklist; blank and duplicate entries are dropped, and hit counters of
+     * removed keywords are discarded.
+     */
+    static void set_keywords(@NotNull Context context, @NotNull List<String> keywords) {
+        final ArrayList<String> normalized = normalize(keywords);
+        PaperCompat.init(context);
+        PaperCompat.book().transaction(book -> {
+            book.write(PaperKey.BLACK_KEYWORD_LIST, normalized);
+            LinkedHashMap<String, Long> hits = book.read(PaperKey.BLACK_KEYWORD_HITS);
+            hits.keySet().retainAll(normalized);
+            book.write(PaperKey.BLACK_KEYWORD_HITS, hits);
+        });
+    }
+
+    /**
+     * @return the first keyword found in the message, or null. The hit is counted.
+     */
+    @Nullable
+    String match(@NotNull String message) {
+        final int[] matched = {-1};
+        automaton.scan(message, (keyword, start, end) -> {
+            matched[0] = keyword;
+            return false;
+        });
+        if (matched[0] < 0) {
+            return null;
+        }
+        final String keyword = keywords.get(matched[0]);
+        PaperCompat.book().update(PaperKey.BLACK_KEYWORD_HITS, hits -> {
+            Long count = hits.get(keyword);
+            hits.put(keyword, count == null ? 1 : count + 1);
+            return hits;
+        });
+        return keyword;
+    }
+
+    @NotNull
+    static Map<String, Object> get_stats(@NotNull Context context) {
+        keyword_filter filter = get(context);
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("keywords", filter.keywords.size());
+        synchronized (keyword_filter.class) {
+            stats.put("rebuilds", rebuild_count);
+        }
+        stats.put("hits", PaperCompat.book().read(PaperKey.BLACK_KEYWORD_HITS));
+        return stats;
+    }
+
+    private static ArrayList<String> normalize(List<String> keywords) {
+        LinkedHashSet<String> result = new LinkedHashSet<>();
+        for (String keyword : keywords) {
+            String trimmed = keyword.trim();
+            if (!trimmed.isEmpty()) {
+                result.add(trimmed);
+            }
+        }
+        return new ArrayList<>(result);
+    }
+}
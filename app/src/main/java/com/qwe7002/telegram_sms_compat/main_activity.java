@@ -40,7 +40,6 @@ import org.jetbrains.annotations.NotNull;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 
@@ -385,9 +384,13 @@ public class main_activity extends AppCompatActivity {
                     }
                     if (!new_bot_token.equals(bot_token_save)) {
                         Log.i(TAG, "onResponse: The current bot token does not match the saved bot token, clearing the message database.");
-                        List<String> notify_listen_list = PaperCompat.book().read("notify_listen_list", new ArrayList<>());
-                        PaperCompat.book().destroy();
-                        PaperCompat.book().write("notify_listen_list", notify_listen_list);
+                        PaperCompat.book().transaction(book -> {
+                            ArrayList<String> notify_listen_list = book.read(PaperKey.NOTIFY_LISTEN_LIST);
+                            book.destroy();
+                            book.write(PaperKey.NOTIFY_LISTEN_LIST, notify_listen_list);
+                        });
+                        reply_index.get(context).clear();
+                        bot_identity.invalidate(context);
                     }
                     SharedPreferences.Editor editor = sharedPreferences.edit().clear();
                     editor.putString("bot_token", new_bot_token);
@@ -602,7 +605,7 @@ public class main_activity extends AppCompatActivity {
             case R.id.spam_sms_keyword:
                 View spam_dialog_view = inflater.inflate(R.layout.set_keyword_layout, null);
                 final EditText editText = spam_dialog_view.findViewById(R.id.spam_sms_keyword);
-                ArrayList<String> black_keyword_list_old = PaperCompat.book().read("black_keyword_list", new ArrayList<>());
+                ArrayList<String> black_keyword_list_old = PaperCompat.book().read(PaperKey.BLACK_KEYWORD_LIST);
                 StringBuilder black_keyword_list_old_string = new StringBuilder();
                 int count = 0;
                 for (String list_item : black_keyword_list_old) {
@@ -618,8 +621,7 @@ public class main_activity extends AppCompatActivity {
                         .setPositiveButton("OK", (dialog, which) -> {
                             String input = editText.getText().toString();
                             if (input.length() != 0) {
-                                String[] black_keyword_list = input.split(";");
-                                PaperCompat.book().write("black_keyword_list", new ArrayList<>(Arrays.asList(black_keyword_list)));
+                                keyword_filter.set_keywords(context, Arrays.asList(input.split(";")));
                             }
                         })
                         .show();
@@ -7,4 +7,5 @@ class message_json {
     String chat_id;
     long message_id;
     String text;
+    Boolean disable_notification;
 }
\ No newline at end of file
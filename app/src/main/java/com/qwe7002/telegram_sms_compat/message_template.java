@@ -0,0 +1,271 @@
+package com.qwe7002.telegram_sms_compat;
+
+import android.content.Context;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Text of the forwarded events. A template is plain text with <code>{name}</code> placeholders
+ * and <code>{{</code> for a literal brace. The defaults are built from the string resources;
+ * each can be overridden through the web config, e.g. to shorten messages on slow links.
+ * <p>
+ * A template is compiled once per kind, locale and source into literal segments and placeholder
+ * slots, and rendered into one builder sized for the result. In HTML mode the literals are
+ * escaped at compile time and the values while they are copied; a value wrapped in {@link html}
+ * is copied as it is.
+ */
+class message_template {
+    static final String SMS = "sms";
+    static final String MISSED_CALL = "missed_call";
+    static final String BATTERY = "battery";
+    static final String NOTIFICATION = "notification";
+    private static final Map<String, List<String>> VARIABLES = new LinkedHashMap<>();
+    private static final Map<String, PaperKey<String>> KEYS = new HashMap<>();
+    private static final Map<String, message_template> compiled = new HashMap<>();
+
+    static {
+        VARIABLES.put(SMS, Arrays.asList("sender", "body"));
+        VARIABLES.put(MISSED_CALL, Arrays.asList("number"));
+        VARIABLES.put(BATTERY, Arrays.asList("status", "level"));
+        VARIABLES.put(NOTIFICATION, Arrays.asList("app", "title", "content"));
+        for (String kind : VARIABLES.keySet()) {
+            KEYS.put(kind, new PaperKey<>("message_template_" + kind, PaperCodecs.STRING, null));
+        }
+    }
+
+    /**
+     * A value that is already HTML.
+     */
+    static final class html {
+        final String text;
+
+        html(@NotNull String text) {
+            this.text = text;
+        }
+    }
+
+    private final String locale;
+    private final String override;
+    private final String[] literals;
+    private final String[] html_literals;
+    private final int[] slots;
+    private final int literal_length;
+    private final int html_literal_length;
+
+    private message_template(String locale, String override, String source, List<String> variables) {
+        this.locale = locale;
+        this.override = override;
+        ArrayList<String> literal_list = new ArrayList<>();
+        ArrayList<Integer> slot_list = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int index = 0;
+        while (index < source.length()) {
+            char c = source.charAt(index);
+            if (c == '{' && index + 1 < source.length() && source.charAt(index + 1) == '{') {
+                literal.append('{');
+                index += 2;
+                continue;
+            }
+            int end = c == '{' ? source.indexOf('}', index) : -1;
+            int slot = end < 0 ? -1 : variables.indexOf(source.substring(index + 1, end));
+            if (slot < 0) {
+                literal.append(c);
+                ++index;
+                continue;
+            }
+            literal_list.add(literal.toString());
+            literal.setLength(0);
+            slot_list.add(slot);
+            index = end + 1;
+        }
+        literal_list.add(literal.toString());
+        literals = literal_list.toArray(new String[0]);
+        html_literals = new String[literals.length];
+        int length = 0;
+        int html_length = 0;
+        for (int i = 0; i < literals.length; ++i) {
+            StringBuilder escaped = new StringBuilder(literals[i].length());
+            escape_html(literals[i], escaped);
+            html_literals[i] = escaped.toString();
+            length += literals[i].length();
+            html_length += html_literals[i].length();
+        }
+        literal_length = length;
+        html_literal_length = html_length;
+        slots = new int[slot_list.size()];
+        for (int i = 0; i < slots.length; ++i) {
+            slots[i] = slot_list.get(i);
+        }
+    }
+
+    @NotNull
+    static synchronized message_template get(@NotNull Context context, @NotNull String kind) {
+        PaperKey<String> key = KEYS.get(kind);
+        if (key == null) {
+            throw new IllegalArgumentException("Unknown template " + kind);
+        }
+        PaperCompat.init(context);
+        String override = PaperCompat.book().read(key);
+        String locale = context.getResources().getConfiguration().locale.toString();
+        message_template template = compiled.get(kind);
+        if (template == null || !template.locale.equals(locale) || !equal(template.override, override)) {
+            String source = override == null ? get_default(context, kind) : override;
+            template = new message_template(locale, override, source, VARIABLES.get(kind));
+            compiled.put(kind, template);
+        }
+        return template;
+    }
+
+    /**
+     * Every template with its placeholders, its default and the override, if any.
+     */
+    @NotNull
+    static Map<String, Object> list(@NotNull Context context) {
+        PaperCompat.init(context);
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> entry : VARIABLES.entrySet()) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("variables", entry.getValue());
+            item.put("default", get_default(context, entry.getKey()));
+            item.put("template", PaperCompat.book().read(KEYS.get(entry.getKey())));
+            result.put(entry.getKey(), item);
+        }
+        return result;
+    }
+
+    /**
+     * Stores an override; null or an empty template restores the default.
+     *
+     * @throws IllegalArgumentException for an unknown kind or placeholder.
+     */
+    static void set(@NotNull Context context, @NotNull String kind, @Nullable String template) {
+        validate(kind, template);
+        PaperCompat.init(context);
+        if (template == null || template.isEmpty()) {
+            PaperCompat.book().delete(KEYS.get(kind));
+            return;
+        }
+        PaperCompat.book().write(KEYS.get(kind), template);
+    }
+
+    /**
+     * @throws IllegalArgumentException for an unknown kind or placeholder.
+     */
+    static void validate(@NotNull String kind, @Nullable String template) {
+        List<String> variables = VARIABLES.get(kind);
+        if (variables == null) {
+            throw new IllegalArgumentException("Unknown template " + kind);
+        }
+        if (template == null) {
+            return;
+        }
+        int index = 0;
+        while ((index = template.indexOf('{', index)) >= 0) {
+            if (index + 1 < template.length() && template.charAt(index + 1) == '{') {
+                index += 2;
+                continue;
+            }
+            int end = template.indexOf('}', index);
+            if (end < 0 || !variables.contains(template.substring(index + 1, end))) {
+                throw new IllegalArgumentException("Template " + kind + " only supports " + variables + "; write {{ for a literal brace");
+            }
+            index = end + 1;
+        }
+    }
+
+    /**
+     * @param values one per placeholder name, in the order listed for the kind; null renders as
+     *               nothing.
+     */
+    @NotNull
+    String render(@NotNull CharSequence... values) {
+        int length = literal_length;
+        for (int slot : slots) {
+            length += values[slot] == null ? 0 : values[slot].length();
+        }
+        StringBuilder result = new StringBuilder(length);
+        for (int i = 0; i < slots.length; ++i) {
+            result.append(literals[i]);
+            if (values[slots[i]] != null) {
+                result.append(values[slots[i]]);
+            }
+        }
+        return result.append(literals[slots.length]).toString();
+    }
+
+    @NotNull
+    String render_html(@NotNull Object... values) {
+        int length = html_literal_length;
+        for (int slot : slots) {
+            Object value = values[slot];
+            // Room for a few escapes without growing the builder.
+            length += value instanceof html ? ((html) value).text.length() : String.valueOf(value).length() + 16;
+        }
+        StringBuilder result = new StringBuilder(length);
+        for (int i = 0; i < slots.length; ++i) {
+            result.append(html_literals[i]);
+            Object value = values[slots[i]];
+            if (value instanceof html) {
+                result.append(((html) value).text);
+            } else if (value != null) {
+                escape_html(value.toString(), result);
+            }
+        }
+        return result.append(html_literals[slots.length]).toString();
+    }
+
+    /**
+     * Escapes the characters Telegram's HTML parse mode requires, in one pass.
+     */
+    static void escape_html(@NotNull CharSequence text, @NotNull StringBuilder output) {
+        int start = 0;
+        for (int i = 0; i < text.length(); ++i) {
+            String replacement;
+            switch (text.charAt(i)) {
+                case '&':
+                    replacement = "&amp;";
+                    break;
+                case '<':
+                    replacement = "&lt;";
+                    break;
+                case '>':
+                    replacement = "&gt;";
+                    break;
+                default:
+                    continue;
+            }
+            output.append(text, start, i).append(replacement);
+            start = i + 1;
+        }
+        output.append(text, start, text.length());
+    }
+
+    private static String get_default(Context context, String kind) {
+        switch (kind) {
+            case SMS:
+                return "[" + literal(context, R.string.receive_sms_head) + "]\n" + literal(context, R.string.from) + "{sender}\n" + literal(context, R.string.content) + "{body}";
+            case MISSED_CALL:
+                return "[" + literal(context, R.string.missed_call_head) + "]\n" + literal(context, R.string.Incoming_number) + "{number}";
+            case BATTERY:
+                return literal(context, R.string.system_message_head) + "\n{status}\n" + literal(context, R.string.current_battery_level) + "{level}%";
+            default:
+                return literal(context, R.string.receive_notification_title) + "\n" + literal(context, R.string.app_name_title) + "{app}\n" + literal(context, R.string.title) + "{title}\n" + literal(context, R.string.content) + "{content}";
+        }
+    }
+
+    private static String literal(Context context, int id) {
+        return context.getString(id).replace("{", "{{");
+    }
+
+    private static boolean equal(String first, String second) {
+        return first == null ? second == null : first.equals(second);
+    }
+}
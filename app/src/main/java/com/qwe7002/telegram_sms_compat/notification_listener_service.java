@@ -21,7 +21,6 @@ import com.google.gson.Gson;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -63,7 +62,7 @@ public class notification_listener_service extends NotificationListenerService {
         final String package_name = sbn.getPackageName();
         Log.d(TAG, "onNotificationPosted: " + package_name);
 
-        List<String> listen_list = PaperCompat.book().read("notify_listen_list", new ArrayList<>());
+        List<String> listen_list = PaperCompat.book().read(PaperKey.NOTIFY_LISTEN_LIST);
         if (!listen_list.contains(package_name)) {
             Log.i(TAG, "[" + package_name + "] Not in the list of listening packages.");
             return;
@@ -93,7 +92,28 @@ public class notification_listener_service extends NotificationListenerService {
         String request_uri = public_func.get_url(bot_token, "sendMessage");
         message_json request_body = new message_json();
         request_body.chat_id = chat_id;
-        request_body.text = getString(R.string.receive_notification_title) + "\n" + getString(R.string.app_name_title) + app_name + "\n" + getString(R.string.title) + title + "\n" + getString(R.string.content) + content;
+        request_body.text = message_template.get(context, message_template.NOTIFICATION).render(app_name, title, content);
+        rule_engine rules = rule_engine.get(context);
+        long matched_rules = rules.evaluate(package_name, title + "\n" + content, false);
+        int rule_actions = rules.decide(matched_rules);
+        if ((rule_actions & rule_engine.ACTION_DROP) != 0) {
+            Log.i(TAG, "[" + package_name + "] Notification dropped by rule.");
+            return;
+        }
+        if ((rule_actions & rule_engine.ACTION_SPAM) != 0) {
+            spam_archive.add(context, request_body.text);
+            Log.i(TAG, "[" + package_name + "] Notification moved to the spam list by rule.");
+            return;
+        }
+        if ((rule_actions & rule_engine.ACTION_FORWARD) != 0) {
+            request_body.chat_id = rules.get_forward_chat(matched_rules);
+        }
+        if ((rule_actions & rule_engine.ACTION_SILENT) != 0) {
+            request_body.disable_notification = true;
+        }
+        final String queue_entry = (rule_actions & (rule_engine.ACTION_FORWARD | rule_engine.ACTION_SILENT)) != 0 ? resend_queue.routed_entry(request_body) : request_body.text;
+        final outbox outbox_log = outbox.get(context);
+        final long outbox_id = outbox_log.append(queue_entry);
         RequestBody body = RequestBody.create(public_func.JSON, new Gson().toJson(request_body));
         OkHttpClient okhttp_client = public_func.get_okhttp_obj(sharedPreferences.getBoolean("doh_switch", true));
         Request request = new Request.Builder().url(request_uri).method("POST", body).build();
@@ -102,18 +122,25 @@ public class notification_listener_service extends NotificationListenerService {
         call.enqueue(new Callback() {
             @Override
             public void onFailure(@NonNull Call call, @NonNull IOException e) {
-                e.printStackTrace();
-                public_func.write_log(context, error_head + e.getMessage());
-                public_func.add_resend_loop(context, request_body.text);
+                try {
+                    e.printStackTrace();
+                    public_func.write_log(context, error_head + e.getMessage());
+                    public_func.add_resend_loop(context, queue_entry);
+                } finally {
+                    outbox_log.ack(outbox_id);
+                }
             }
 
             @Override
             public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
-                assert response.body() != null;
-                String result = Objects.requireNonNull(response.body()).string();
-                if (response.code() != 200) {
-                    public_func.write_log(context, error_head + response.code() + " " + result);
-                    public_func.add_resend_loop(context, request_body.text);
+                try {
+                    if (response.code() != 200) {
+                        public_func.add_resend_loop(context, queue_entry);
+                        String result = Objects.requireNonNull(response.body()).string();
+                        public_func.write_log(context, error_head + response.code() + " " + result);
+                    }
+                } finally {
+                    outbox_log.ack(outbox_id);
                 }
             }
         });
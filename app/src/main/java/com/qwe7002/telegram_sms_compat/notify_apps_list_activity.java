@@ -122,7 +122,7 @@ public class notify_apps_list_activity extends AppCompatActivity {
 
         app_adapter(Context context) {
             this.context = context;
-            this.listen_list = PaperCompat.book().read("notify_listen_list", new ArrayList<>());
+            this.listen_list = PaperCompat.book().read(PaperKey.NOTIFY_LISTEN_LIST);
         }
 
         public List<app_info> getData() {
@@ -178,17 +178,18 @@ public class notify_apps_list_activity extends AppCompatActivity {
             view_holder_object.app_checkbox.setOnClickListener(v -> {
                 app_info item_info = (app_info) getItem(position);
                 String package_name = item_info.package_name;
-                List<String> listen_list_temp = PaperCompat.book().read("notify_listen_list", new ArrayList<>());
-                if (view_holder_object.app_checkbox.isChecked()) {
-                    if (!listen_list_temp.contains(package_name)) {
-                        listen_list_temp.add(package_name);
+                boolean is_checked = view_holder_object.app_checkbox.isChecked();
+                listen_list = PaperCompat.book().update(PaperKey.NOTIFY_LISTEN_LIST, listen_list_temp -> {
+                    if (is_checked) {
+                        if (!listen_list_temp.contains(package_name)) {
+                            listen_list_temp.add(package_name);
+                        }
+                    } else {
+                        listen_list_temp.remove(package_name);
                     }
-                } else {
-                    listen_list_temp.remove(package_name);
-                }
-                Log.d(TAG, "notify_listen_list: " + listen_list_temp);
-                PaperCompat.book().write("notify_listen_list", listen_list_temp);
-                listen_list = listen_list_temp;
+                    return listen_list_temp;
+                });
+                Log.d(TAG, "notify_listen_list: " + listen_list);
             });
             return convert_view;
         }
@@ -0,0 +1,347 @@
+package com.qwe7002.telegram_sms_compat;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.util.Log;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Write-ahead log for outgoing messages.
+ * Every forwardable event is appended before its network call and marked done once the
+ * request is acknowledged or handed over to {@link resend_queue}. Each process owns its own
+ * log, so anything still pending when the process starts was in flight when it died and is
+ * moved to the resend queue.
+ * Incoming SMS are also logged as raw PDUs before they are processed, and acknowledged once
+ * processing has appended the forwarded text or decided to drop the message; raw records still
+ * pending at start are handed back to {@link sms_receiver#replay}.
+ * Appends are written by a single commit thread, so a burst of events shares one fsync.
+ */
+class outbox {
+    private static final String TAG = "outbox";
+    private static final byte RECORD_APPEND = 'A';
+    private static final byte RECORD_DONE = 'D';
+    private static final byte RECORD_SMS = 'S';
+    private static final long DURABLE_WAIT_MILLIS = 2000;
+    private static final long COMPACT_THRESHOLD_BYTES = 64 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static outbox instance;
+
+    private final Context context;
+    private final File log_file;
+    private final Object monitor = new Object();
+    private final ExecutorService waiter = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "outbox_waiter");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ArrayList<byte[]> pending_records = new ArrayList<>();
+    private final HashSet<Long> live_entries = new HashSet<>();
+    private long next_id = 1;
+    private long last_queued_id = 0;
+    private long last_durable_id = 0;
+    private FileOutputStream log_stream;
+    private long commit_count = 0;
+    private long committed_records = 0;
+
+    private outbox(Context context) {
+        this.context = context;
+        this.log_file = new File(context.getFilesDir(), "outbox_" + public_func.get_process_suffix(context) + ".log");
+    }
+
+    @NotNull
+    static synchronized outbox get(@NotNull Context context) {
+        if (instance == null) {
+            instance = new outbox(context.getApplicationContext());
+            Thread commit_thread = new Thread(instance::commit_loop, "outbox_commit");
+            commit_thread.setDaemon(true);
+            commit_thread.start();
+        }
+        return instance;
+    }
+
+    long append(@NotNull String text) {
+        byte[] bytes = text.getBytes(UTF_8);
+        synchronized (monitor) {
+            long id = next_id++;
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(13 + bytes.length);
+            DataOutputStream output = new DataOutputStream(buffer);
+            try {
+                output.writeByte(RECORD_APPEND);
+                output.writeLong(id);
+                output.writeInt(bytes.length);
+                output.write(bytes);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            pending_records.add(buffer.toByteArray());
+            live_entries.add(id);
+            last_queued_id = id;
+            monitor.notifyAll();
+            return id;
+        }
+    }
+
+    /**
+     * Logs the PDUs of one incoming SMS broadcast, to be acked once it has been processed.
+     */
+    long append_sms(@NotNull byte[][] pdus) {
+        synchronized (monitor) {
+            long id = next_id++;
+            pending_records.add(sms_record(id, pdus));
+            live_entries.add(id);
+            last_queued_id = id;
+            monitor.notifyAll();
+            return id;
+        }
+    }
+
+    void ack(long id) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(9);
+        DataOutputStream output = new DataOutputStream(buffer);
+        try {
+            output.writeByte(RECORD_DONE);
+            output.writeLong(id);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        synchronized (monitor) {
+            if (!live_entries.remove(id)) {
+                return;
+            }
+            pending_records.add(buffer.toByteArray());
+            monitor.notifyAll();
+        }
+    }
+
+    /**
+     * Blocks until the append with the given id has been synced to disk.
+     * Call it as late as possible, right before the component may be killed, and never on the
+     * main thread; receivers use {@link #finish_when_durable}.
+     */
+    void await_durable(long id) {
+        long deadline = System.currentTimeMillis() + DURABLE_WAIT_MILLIS;
+        synchronized (monitor) {
+            while (last_durable_id < id) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    Log.w(TAG, "await_durable: timed out waiting for record " + id);
+                    return;
+                }
+                try {
+                    monitor.wait(remaining);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Finishes an asynchronous broadcast once the append with the given id has been synced, or
+     * the wait has timed out. The wait runs on a background thread instead of the main thread.
+     */
+    void finish_when_durable(final long id, @NotNull final BroadcastReceiver.PendingResult result) {
+        waiter.execute(() -> {
+            try {
+                await_durable(id);
+            } finally {
+                result.finish();
+            }
+        });
+    }
+
+    @NotNull
+    String get_stats() {
+        synchronized (monitor) {
+            return "commits=" + commit_count + " records=" + committed_records + " live=" + live_entries.size();
+        }
+    }
+
+    private void commit_loop() {
+        recover();
+        ArrayList<byte[]> batch = new ArrayList<>();
+        while (true) {
+            long batch_last_id;
+            synchronized (monitor) {
+                while (pending_records.isEmpty()) {
+                    try {
+                        monitor.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                batch.addAll(pending_records);
+                pending_records.clear();
+                batch_last_id = last_queued_id;
+            }
+            try {
+                if (log_stream == null) {
+                    log_stream = new FileOutputStream(log_file, true);
+                }
+                for (byte[] record : batch) {
+                    log_stream.write(record);
+                }
+                log_stream.flush();
+                log_stream.getFD().sync();
+            } catch (IOException e) {
+                Log.e(TAG, "commit_loop: failed to write log", e);
+            }
+            synchronized (monitor) {
+                ++commit_count;
+                committed_records += batch.size();
+                last_durable_id = Math.max(last_durable_id, batch_last_id);
+                if (live_entries.isEmpty() && pending_records.isEmpty() && log_file.length() > COMPACT_THRESHOLD_BYTES) {
+                    truncate_log();
+                }
+                monitor.notifyAll();
+            }
+            batch.clear();
+        }
+    }
+
+    private static byte[] sms_record(long id, byte[][] pdus) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        DataOutputStream output = new DataOutputStream(buffer);
+        try {
+            output.writeByte(RECORD_SMS);
+            output.writeLong(id);
+            output.writeInt(pdus.length);
+            for (byte[] pdu : pdus) {
+                output.writeInt(pdu.length);
+                output.write(pdu);
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return buffer.toByteArray();
+    }
+
+    private void truncate_log() {
+        try {
+            if (log_stream != null) {
+                log_stream.close();
+            }
+            log_stream = new FileOutputStream(log_file, false);
+            log_stream.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "truncate_log: failed", e);
+        }
+    }
+
+    /**
+     * Replaces the log with one holding only the given records, through a synced temporary file,
+     * so a crash at any point leaves either the old log or the new one.
+     */
+    private void replace_log(ArrayList<byte[]> records) {
+        File temp_file = new File(log_file.getPath() + ".tmp");
+        try {
+            if (log_stream != null) {
+                log_stream.close();
+                log_stream = null;
+            }
+            FileOutputStream temp_stream = new FileOutputStream(temp_file, false);
+            try {
+                for (byte[] record : records) {
+                    temp_stream.write(record);
+                }
+                temp_stream.flush();
+                temp_stream.getFD().sync();
+            } finally {
+                temp_stream.close();
+            }
+            if (!temp_file.renameTo(log_file)) {
+                throw new IOException("Unable to replace " + log_file.getName());
+            }
+            log_stream = new FileOutputStream(log_file, true);
+        } catch (IOException e) {
+            Log.e(TAG, "replace_log: failed", e);
+        }
+    }
+
+    private void recover() {
+        LinkedHashMap<Long, String> unfinished = new LinkedHashMap<>();
+        LinkedHashMap<Long, byte[][]> unfinished_sms = new LinkedHashMap<>();
+        if (log_file.exists()) {
+            DataInputStream input = null;
+            try {
+                input = new DataInputStream(new BufferedInputStream(new FileInputStream(log_file)));
+                while (true) {
+                    byte type = input.readByte();
+                    long id = input.readLong();
+                    if (type == RECORD_APPEND) {
+                        byte[] bytes = new byte[input.readInt()];
+                        input.readFully(bytes);
+                        unfinished.put(id, new String(bytes, UTF_8));
+                    } else if (type == RECORD_SMS) {
+                        byte[][] pdus = new byte[input.readInt()][];
+                        for (int i = 0; i < pdus.length; ++i) {
+                            pdus[i] = new byte[input.readInt()];
+                            input.readFully(pdus[i]);
+                        }
+                        unfinished_sms.put(id, pdus);
+                    } else if (type == RECORD_DONE) {
+                        unfinished.remove(id);
+                        unfinished_sms.remove(id);
+                    } else {
+                        Log.w(TAG, "recover: unknown record type " + type);
+                        break;
+                    }
+                }
+            } catch (EOFException e) {
+                // End of log, or a record torn by a crash mid-write.
+            } catch (IOException | OutOfMemoryError e) {
+                Log.e(TAG, "recover: failed to read log", e);
+            } finally {
+                if (input != null) {
+                    try {
+                        input.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+        for (Map.Entry<Long, String> entry : unfinished.entrySet()) {
+            resend_queue.add(context, entry.getValue());
+        }
+        // Unprocessed SMS move into the new log under new ids before the old one is dropped. The old
+        // log is only read here, so ids handed out by this process never collide with it.
+        LinkedHashMap<Long, byte[][]> carried_sms = new LinkedHashMap<>();
+        synchronized (monitor) {
+            ArrayList<byte[]> records = new ArrayList<>();
+            for (byte[][] pdus : unfinished_sms.values()) {
+                long id = next_id++;
+                records.add(sms_record(id, pdus));
+                live_entries.add(id);
+                carried_sms.put(id, pdus);
+            }
+            replace_log(records);
+        }
+        if (!unfinished.isEmpty()) {
+            public_func.write_log(context, "Recovered " + unfinished.size() + " unsent messages from the outbox.");
+            public_func.start_resend(context);
+        }
+        if (!unfinished_sms.isEmpty()) {
+            public_func.write_log(context, "Replaying " + unfinished_sms.size() + " unprocessed SMS from the outbox.");
+            sms_receiver.replay(context, carried_sms);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.qwe7002.telegram_sms_compat;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.SystemClock;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Chooses the getUpdates long-poll timeout and the delay after failed polls.
+ * <p>
+ * A chat that sent something in the last few minutes gets short polls, so a connection
+ * silently dropped by the network is noticed quickly. An idle chat gets long polls, and so does
+ * any chat when the battery is low, since every poll wakes the radio. On mobile networks the
+ * timeout is additionally capped by the longest hold that has recently survived, because
+ * carrier NATs drop idle connections early. Failures back off exponentially with jitter.
+ */
+class polling_controller {
+    private static final int ACTIVE_TIMEOUT = 10;
+    private static final int WARM_TIMEOUT = 30;
+    private static final int IDLE_TIMEOUT = 55;
+    private static final long ACTIVE_WINDOW_MILLIS = 2 * 60 * 1000;
+    private static final long WARM_WINDOW_MILLIS = 15 * 60 * 1000;
+    private static final int LOW_BATTERY_PERCENT = 15;
+    private static final int BACKOFF_BASE_SECONDS = 5;
+    private static final int BACKOFF_MAX_SECONDS = 300;
+    private static final int IDLE_INTERVAL_MIN_SECONDS = 60;
+    private static final int IDLE_INTERVAL_MAX_SECONDS = 300;
+
+    private final Context context;
+    private final Random random = new Random();
+    private long last_activity = -1;
+    private int mobile_ceiling = IDLE_TIMEOUT;
+    private int error_streak = 0;
+    private int current_timeout = WARM_TIMEOUT;
+    private int idle_interval = IDLE_INTERVAL_MIN_SECONDS;
+    private long poll_count = 0;
+    private long empty_poll_count = 0;
+    private long error_count = 0;
+    private long hold_total_millis = 0;
+
+    polling_controller(@NotNull Context context) {
+        this.context = context;
+    }
+
+    synchronized int next_timeout() {
+        long idle_millis = last_activity < 0 ? Long.MAX_VALUE : SystemClock.elapsedRealtime() - last_activity;
+        int timeout;
+        if (idle_millis < ACTIVE_WINDOW_MILLIS) {
+            timeout = ACTIVE_TIMEOUT;
+        } else if (idle_millis < WARM_WINDOW_MILLIS && !is_battery_low()) {
+            timeout = WARM_TIMEOUT;
+        } else {
+            timeout = IDLE_TIMEOUT;
+        }
+        if (is_mobile_network()) {
+            timeout = Math.min(timeout, mobile_ceiling);
+        }
+        current_timeout = timeout;
+        return timeout;
+    }
+
+    synchronized void on_activity() {
+        last_activity = SystemClock.elapsedRealtime();
+        idle_interval = IDLE_INTERVAL_MIN_SECONDS;
+    }
+
+    /**
+     * Whether the chat has been quiet long enough for duty-cycled polling to sleep between polls.
+     */
+    synchronized boolean is_idle() {
+        return last_activity < 0 || SystemClock.elapsedRealtime() - last_activity >= WARM_WINDOW_MILLIS;
+    }
+
+    /**
+     * Seconds to sleep before the next duty-cycled poll; doubles while nothing arrives.
+     */
+    synchronized int next_idle_interval() {
+        int interval = idle_interval;
+        idle_interval = Math.min(IDLE_INTERVAL_MAX_SECONDS, idle_interval * 2);
+        return interval;
+    }
+
+    synchronized void on_poll_success(int timeout, long hold_millis, int update_count) {
+        error_streak = 0;
+        ++poll_count;
+        hold_total_millis += hold_millis;
+        if (update_count == 0) {
+            ++empty_poll_count;
+            // The connection survived the whole hold, so the carrier tolerates a little more.
+            if (hold_millis >= timeout * 900L && is_mobile_network()) {
+                mobile_ceiling = Math.min(IDLE_TIMEOUT, mobile_ceiling + 5);
+            }
+        }
+    }
+
+    /**
+     * @return seconds to wait before the next poll.
+     */
+    synchronized int on_poll_failure(boolean timed_out) {
+        ++error_count;
+        ++error_streak;
+        if (timed_out && is_mobile_network()) {
+            mobile_ceiling = Math.max(ACTIVE_TIMEOUT, current_timeout * 2 / 3);
+        }
+        int delay = Math.min(BACKOFF_MAX_SECONDS, BACKOFF_BASE_SECONDS << Math.min(error_streak - 1, 6));
+        return delay / 2 + random.nextInt(delay / 2 + 1);
+    }
+
+    synchronized void reset() {
+        error_streak = 0;
+    }
+
+    synchronized Map<String, Object> get_stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("polls", poll_count);
+        stats.put("emptyPollRatio", poll_count == 0 ? 0.0 : (double) empty_poll_count / poll_count);
+        stats.put("avgHoldMillis", poll_count == 0 ? 0 : hold_total_millis / poll_count);
+        stats.put("errors", error_count);
+        stats.put("errorStreak", error_streak);
+        stats.put("currentTimeout", current_timeout);
+        stats.put("mobileCeiling", mobile_ceiling);
+        stats.put("idleIntervalSeconds", idle_interval);
+        return stats;
+    }
+
+    private boolean is_mobile_network() {
+        ConnectivityManager connect_manager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connect_manager == null) {
+            return false;
+        }
+        NetworkInfo network_info = connect_manager.getActiveNetworkInfo();
+        return network_info != null && network_info.getType() == ConnectivityManager.TYPE_MOBILE;
+    }
+
+    private boolean is_battery_low() {
+        Intent battery_status = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery_status == null) {
+            return false;
+        }
+        if (battery_status.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0) {
+            return false;
+        }
+        int level = battery_status.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery_status.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        return level >= 0 && scale > 0 && level * 100 / scale < LOW_BATTERY_PERCENT;
+    }
+}
@@ -3,6 +3,5 @@ package com.qwe7002.telegram_sms_compat;
 class polling_json {
     long offset;
     int timeout;
-    @SuppressWarnings({"unused", "RedundantSuppression"})
-    final String[] allowed_updates = {"message", "channel_post"};
+    String[] allowed_updates;
 }
@@ -0,0 +1,75 @@
+package com.qwe7002.telegram_sms_compat;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.net.wifi.WifiManager;
+import android.os.PowerManager;
+import android.os.SystemClock;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The wake lock and Wi-Fi lock of chat_command_service, with accounting of how long they
+ * are held so continuous and duty-cycled polling can be compared.
+ */
+class polling_locks {
+    private final PowerManager.WakeLock wakelock;
+    private final WifiManager.WifiLock wifi_lock;
+    private final long created_at = SystemClock.elapsedRealtime();
+    private long held_since = -1;
+    private long held_total_millis = 0;
+    private long acquire_count = 0;
+
+    @SuppressLint("InvalidWakeLockTag")
+    polling_locks(@NotNull Context context) {
+        wifi_lock = ((WifiManager) Objects.requireNonNull(context.getApplicationContext().getSystemService(Context.WIFI_SERVICE))).createWifiLock(WifiManager.WIFI_MODE_FULL, "bot_command_polling_wifi");
+        wakelock = ((PowerManager) Objects.requireNonNull(context.getSystemService(Context.POWER_SERVICE))).newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "bot_command_polling");
+        wifi_lock.setReferenceCounted(false);
+        wakelock.setReferenceCounted(false);
+    }
+
+    @SuppressLint("WakelockTimeout")
+    synchronized void acquire() {
+        if (held_since >= 0) {
+            return;
+        }
+        if (!wifi_lock.isHeld()) {
+            wifi_lock.acquire();
+        }
+        if (!wakelock.isHeld()) {
+            wakelock.acquire();
+        }
+        held_since = SystemClock.elapsedRealtime();
+        ++acquire_count;
+    }
+
+    synchronized void release() {
+        if (held_since < 0) {
+            return;
+        }
+        if (wifi_lock.isHeld()) {
+            wifi_lock.release();
+        }
+        if (wakelock.isHeld()) {
+            wakelock.release();
+        }
+        held_total_millis += SystemClock.elapsedRealtime() - held_since;
+        held_since = -1;
+    }
+
+    synchronized Map<String, Object> get_stats() {
+        long now = SystemClock.elapsedRealtime();
+        long held = held_total_millis + (held_since >= 0 ? now - held_since : 0);
+        long alive = Math.max(1, now - created_at);
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("held", held_since >= 0);
+        stats.put("heldMillis", held);
+        stats.put("heldRatio", (double) held / alive);
+        stats.put("acquisitions", acquire_count);
+        return stats;
+    }
+}
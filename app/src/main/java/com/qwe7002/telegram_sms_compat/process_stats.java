@@ -0,0 +1,107 @@
+package com.qwe7002.telegram_sms_compat;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParser;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Metrics of the :command and :battery processes, which WebConfigService cannot read directly.
+ * Each process writes its sections to stats_&lt;process&gt;.json at most every few seconds,
+ * and /api/stats merges all of those files.
+ */
+class process_stats {
+    private static final String TAG = "process_stats";
+    private static final String FILE_PREFIX = "stats_";
+    private static final String FILE_SUFFIX = ".json";
+    private static final long PUBLISH_INTERVAL_MILLIS = 5000;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Map<String, Object> sections = new LinkedHashMap<>();
+    private static long last_publish = 0;
+
+    private process_stats() {
+    }
+
+    static synchronized void publish(@NotNull Context context, @NotNull String section, @NotNull Map<String, Object> values) {
+        sections.put(section, values);
+        long now = SystemClock.elapsedRealtime();
+        if (last_publish != 0 && now - last_publish < PUBLISH_INTERVAL_MILLIS) {
+            return;
+        }
+        last_publish = now;
+        File file = new File(context.getFilesDir(), FILE_PREFIX + public_func.get_process_suffix(context) + FILE_SUFFIX);
+        File temp_file = new File(file.getPath() + ".tmp");
+        FileOutputStream file_stream = null;
+        try {
+            file_stream = new FileOutputStream(temp_file, false);
+            file_stream.write(new Gson().toJson(sections).getBytes(UTF_8));
+            file_stream.close();
+            file_stream = null;
+            if (!temp_file.renameTo(file)) {
+                Log.w(TAG, "publish: unable to replace " + file.getName());
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "publish: failed", e);
+        } finally {
+            if (file_stream != null) {
+                try {
+                    file_stream.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    static Map<String, Object> collect(@NotNull Context context) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        File[] files = context.getFilesDir().listFiles();
+        if (files == null) {
+            return result;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(FILE_PREFIX) || !name.endsWith(FILE_SUFFIX)) {
+                continue;
+            }
+            FileInputStream file_stream = null;
+            try {
+                file_stream = new FileInputStream(file);
+                byte[] buffer = new byte[(int) file.length()];
+                int read = 0;
+                while (read < buffer.length) {
+                    int length = file_stream.read(buffer, read, buffer.length - read);
+                    if (length < 0) {
+                        break;
+                    }
+                    read += length;
+                }
+                String process = name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length());
+                result.put(process, JsonParser.parseString(new String(buffer, 0, read, UTF_8)));
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "collect: skipping " + name, e);
+            } finally {
+                if (file_stream != null) {
+                    try {
+                        file_stream.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -68,6 +68,7 @@ import okhttp3.dnsoverhttps.DnsOverHttps;
 
 class public_func {
     static final String BROADCAST_STOP_SERVICE = "com.qwe7002.telegram_sms_compat.stop_all";
+    static final String BROADCAST_POLL_ALARM = "com.qwe7002.telegram_sms_compat.poll_alarm";
     static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
     static final int BATTERY_NOTIFY_ID = 1;
     static final int CHAT_COMMAND_NOTIFY_ID = 2;
@@ -428,14 +429,42 @@ class public_func {
     }
 
     static void add_resend_loop(Context context, String message) {
-        ArrayList<String> resend_list;
-        PaperCompat.init(context);
-        resend_list = PaperCompat.book().read("resend_list", new ArrayList<>());
-        resend_list.add(message);
-        PaperCompat.book().write("resend_list", resend_list);
+        resend_queue.add(context, message);
         start_resend(context);
     }
 
+    @NotNull
+    static String get_process_suffix(@NotNull Context context) {
+        String process_name = "";
+        FileInputStream file_stream = null;
+        try {
+            file_stream = new FileInputStream("/proc/self/cmdline");
+            byte[] buffer = new byte[256];
+            int length = file_stream.read(buffer);
+            while (length > 0 && buffer[length - 1] == 0) {
+                --length;
+            }
+            if (length > 0) {
+                process_name = new String(buffer, 0, length);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (file_stream != null) {
+                try {
+                    file_stream.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        int separator = process_name.indexOf(':');
+        if (separator == -1 || !process_name.startsWith(context.getPackageName())) {
+            return "main";
+        }
+        return process_name.substring(separator + 1);
+    }
+
     static void start_resend(Context context) {
         Intent intent = new Intent(context, resend_service.class);
         context.startService(intent);
@@ -610,8 +639,8 @@ class public_func {
     }
 
 
-    static void add_message_list(String message_id, String phone) {
-        PaperCompat.book().write(message_id, phone);
+    static void add_message_list(Context context, String message_id, String phone) {
+        reply_index.get(context).put(parse_long(message_id), phone);
         Log.d("add_message_list", "add_message_list: " + message_id);
     }
 
@@ -0,0 +1,300 @@
+package com.qwe7002.telegram_sms_compat;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.google.gson.Gson;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Maps forwarded Telegram message ids to the phone number a reply should go to.
+ * Entries live in an LRU map bounded by capacity and TTL, backed by an append-only file
+ * that every process tails, so lookups are O(1) and new mappings from other processes
+ * become visible without reloading the whole index.
+ */
+class reply_index {
+    private static final String TAG = "reply_index";
+    private static final String FILE_NAME = "reply_index.bin";
+    private static final String LOCK_NAME = "reply_index";
+    private static final int MAGIC = 0x52504c59;
+    private static final int HEADER_SIZE = 12;
+    private static final int DEFAULT_CAPACITY = 2000;
+    private static final int DEFAULT_TTL_HOURS = 24 * 7;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static reply_index instance;
+
+    private final Context context;
+    private final File file;
+    private final int capacity;
+    private final long ttl_millis;
+    private final LinkedHashMap<Long, entry> entries;
+    private long loaded_generation = -1;
+    private long loaded_offset = 0;
+    private int record_count = 0;
+
+    private static class entry {
+        final String phone;
+        final long timestamp;
+
+        entry(String phone, long timestamp) {
+            this.phone = phone;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private reply_index(Context context) {
+        this.context = context;
+        this.file = new File(context.getFilesDir(), FILE_NAME);
+        SharedPreferences sharedPreferences = context.getSharedPreferences("data", Context.MODE_PRIVATE);
+        this.capacity = Math.max(1, sharedPreferences.getInt("reply_index_capacity", DEFAULT_CAPACITY));
+        this.ttl_millis = Math.max(1, sharedPreferences.getInt("reply_index_ttl_hours", DEFAULT_TTL_HOURS)) * 3600000L;
+        this.entries = new LinkedHashMap<Long, entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, entry> eldest) {
+                return size() > reply_index.this.capacity;
+            }
+        };
+    }
+
+    @NotNull
+    static synchronized reply_index get(@NotNull Context context) {
+        if (instance == null) {
+            instance = new reply_index(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    synchronized void put(long message_id, @NotNull String phone) {
+        long now = System.currentTimeMillis();
+        cross_process_lock lock = cross_process_lock.get(context, LOCK_NAME);
+        lock.lock();
+        try {
+            refresh();
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            write_record(new DataOutputStream(buffer), message_id, now, phone);
+            append(buffer.toByteArray());
+            entries.put(message_id, new entry(phone, now));
+            if (record_count > capacity * 2) {
+                compact(now);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "put: failed to append mapping", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    synchronized String lookup(long message_id) {
+        refresh();
+        entry item = entries.get(message_id);
+        if (item == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - item.timestamp > ttl_millis) {
+            entries.remove(message_id);
+            return null;
+        }
+        return item.phone;
+    }
+
+    synchronized void clear() {
+        cross_process_lock lock = cross_process_lock.get(context, LOCK_NAME);
+        lock.lock();
+        try {
+            entries.clear();
+            rewrite();
+        } catch (IOException e) {
+            Log.e(TAG, "clear: failed", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves the message_id keys that add_message_list used to write into the default book.
+     */
+    static void migrate_legacy_keys(@NotNull Context context) {
+        SharedPreferences sharedPreferences = context.getSharedPreferences("data", Context.MODE_PRIVATE);
+        if (sharedPreferences.getBoolean("reply_index_migrated", false)) {
+            return;
+        }
+        PaperCompat.init(context);
+        PaperCompat book = PaperCompat.book();
+        reply_index index = get(context);
+        Gson gson = new Gson();
+        int count = 0;
+        for (String key : book.getAllKeys()) {
+            if (!is_message_id(key)) {
+                continue;
+            }
+            String raw = book.read(key, "");
+            try {
+                String phone = gson.fromJson(raw, String.class);
+                if (phone != null) {
+                    index.put(Long.parseLong(key), phone);
+                    ++count;
+                }
+            } catch (RuntimeException e) {
+                Log.w(TAG, "migrate_legacy_keys: skipping " + key);
+            }
+            book.delete(key);
+        }
+        PaperCompat.flushAll();
+        sharedPreferences.edit().putBoolean("reply_index_migrated", true).apply();
+        Log.i(TAG, "Migrated " + count + " legacy reply mappings.");
+    }
+
+    private static boolean is_message_id(String key) {
+        if (key.isEmpty() || key.length() > 18) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); ++i) {
+            if (!Character.isDigit(key.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void refresh() {
+        if (!file.exists()) {
+            if (loaded_generation != -1) {
+                entries.clear();
+                loaded_generation = -1;
+                loaded_offset = 0;
+                record_count = 0;
+            }
+            return;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            long length = raf.length();
+            if (length < HEADER_SIZE) {
+                return;
+            }
+            if (raf.readInt() != MAGIC) {
+                Log.w(TAG, "refresh: bad header, ignoring index file");
+                return;
+            }
+            long generation = raf.readLong();
+            if (generation != loaded_generation) {
+                // Another process compacted or cleared the file: start over.
+                entries.clear();
+                loaded_generation = generation;
+                loaded_offset = HEADER_SIZE;
+                record_count = 0;
+            }
+            if (length <= loaded_offset) {
+                return;
+            }
+            byte[] tail = new byte[(int) (length - loaded_offset)];
+            raf.seek(loaded_offset);
+            raf.readFully(tail);
+            ByteBuffer buffer = ByteBuffer.wrap(tail);
+            while (buffer.remaining() >= 20) {
+                int start = buffer.position();
+                long message_id = buffer.getLong();
+                long timestamp = buffer.getLong();
+                int phone_length = buffer.getInt();
+                if (phone_length < 0 || buffer.remaining() < phone_length) {
+                    // Record still being written by another process.
+                    buffer.position(start);
+                    break;
+                }
+                String phone = new String(tail, buffer.position(), phone_length, UTF_8);
+                buffer.position(buffer.position() + phone_length);
+                entries.put(message_id, new entry(phone, timestamp));
+                ++record_count;
+            }
+            loaded_offset += buffer.position();
+        } catch (IOException e) {
+            Log.e(TAG, "refresh: failed to read index", e);
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void append(byte[] record) throws IOException {
+        if (!file.exists() || loaded_generation == -1) {
+            rewrite();
+        }
+        FileOutputStream file_stream = new FileOutputStream(file, true);
+        try {
+            file_stream.write(record);
+        } finally {
+            file_stream.close();
+        }
+        loaded_offset += record.length;
+        ++record_count;
+    }
+
+    private void compact(long now) throws IOException {
+        Iterator<Map.Entry<Long, entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().getValue().timestamp > ttl_millis) {
+                iterator.remove();
+            }
+        }
+        rewrite();
+    }
+
+    private void rewrite() throws IOException {
+        long generation = Math.max(System.currentTimeMillis(), loaded_generation + 1);
+        File temp_file = new File(file.getPath() + ".tmp");
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(buffer);
+        output.writeInt(MAGIC);
+        output.writeLong(generation);
+        // Oldest first, so replaying the file rebuilds the same LRU order.
+        ArrayList<Map.Entry<Long, entry>> snapshot = new ArrayList<>(entries.entrySet());
+        for (Map.Entry<Long, entry> item : snapshot) {
+            write_record(output, item.getKey(), item.getValue().timestamp, item.getValue().phone);
+        }
+        output.flush();
+        FileOutputStream file_stream = new FileOutputStream(temp_file, false);
+        try {
+            file_stream.write(buffer.toByteArray());
+            file_stream.getFD().sync();
+        } finally {
+            file_stream.close();
+        }
+        if (!temp_file.renameTo(file)) {
+            throw new IOException("Unable to replace " + FILE_NAME);
+        }
+        loaded_generation = generation;
+        loaded_offset = buffer.size();
+        record_count = snapshot.size();
+    }
+
+    private static void write_record(DataOutputStream output, long message_id, long timestamp, String phone) throws IOException {
+        byte[] bytes = phone.getBytes(UTF_8);
+        output.writeLong(message_id);
+        output.writeLong(timestamp);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+}
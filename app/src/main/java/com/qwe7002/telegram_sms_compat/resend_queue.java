@@ -0,0 +1,257 @@
+package com.qwe7002.telegram_sms_compat;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Failed messages waiting to be resent, shared by every app process.
+ * Each record is a length-prefixed UTF-8 string appended to a private file; all access
+ * goes through {@link cross_process_lock}, so concurrent failures in the main, :command
+ * and :battery processes can no longer overwrite each other's entries.
+ * An entry is the message text, sent to the configured chat, or a {@link #routed_entry} that
+ * also carries the chat and the notification flag a routing rule chose.
+ */
+class resend_queue {
+    static final String QUEUE_FILE_NAME = "resend_queue.bin";
+    private static final String TAG = "resend_queue";
+    private static final String LOCK_NAME = "resend_queue";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char ROUTE_MARK = '\u0001';
+    private static boolean legacy_checked = false;
+
+    /**
+     * Entry for a message that goes to another chat or without a notification.
+     */
+    @NotNull
+    static String routed_entry(@NotNull message_json request_body) {
+        boolean silent = request_body.disable_notification != null && request_body.disable_notification;
+        return ROUTE_MARK + request_body.chat_id + ROUTE_MARK + (silent ? "1" : "0") + ROUTE_MARK + request_body.text;
+    }
+
+    static boolean is_routed(@NotNull String entry) {
+        return !entry.isEmpty() && entry.charAt(0) == ROUTE_MARK;
+    }
+
+    /**
+     * Builds the request that resends an entry, to default_chat_id unless the entry is routed.
+     */
+    @NotNull
+    static message_json to_request(@NotNull String entry, @NotNull String default_chat_id) {
+        message_json request_body = new message_json();
+        request_body.chat_id = default_chat_id;
+        request_body.text = entry;
+        int chat_end = is_routed(entry) ? entry.indexOf(ROUTE_MARK, 1) : -1;
+        int flag_end = chat_end < 0 ? -1 : entry.indexOf(ROUTE_MARK, chat_end + 1);
+        if (flag_end > 0) {
+            request_body.chat_id = entry.substring(1, chat_end);
+            if (entry.substring(chat_end + 1, flag_end).equals("1")) {
+                request_body.disable_notification = true;
+            }
+            request_body.text = entry.substring(flag_end + 1);
+        }
+        return request_body;
+    }
+
+    static void add(@NotNull Context context, @NotNull String message) {
+        cross_process_lock lock = cross_process_lock.get(context, LOCK_NAME);
+        lock.lock();
+        try {
+            migrate_legacy_list(context);
+            List<String> items = new ArrayList<>();
+            items.add(message);
+            append(context, items);
+        } catch (IOException e) {
+            Log.e(TAG, "add: failed to append message", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @NotNull
+    static ArrayList<String> read_all(@NotNull Context context) {
+        cross_process_lock lock = cross_process_lock.get(context, LOCK_NAME);
+        lock.lock();
+        try {
+            migrate_legacy_list(context);
+            return read_file(context);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    static int size(@NotNull Context context) {
+        return read_all(context).size();
+    }
+
+    /**
+     * Removes one occurrence of every sent message with a single rewrite of the queue file.
+     * Entries appended by other processes since the caller's snapshot are preserved.
+     */
+    static void remove(@NotNull Context context, @NotNull List<String> sent_list) {
+        if (sent_list.isEmpty()) {
+            return;
+        }
+        cross_process_lock lock = cross_process_lock.get(context, LOCK_NAME);
+        lock.lock();
+        try {
+            ArrayList<String> items = read_file(context);
+            ArrayList<String> pending = new ArrayList<>(sent_list);
+            ArrayList<String> remaining = new ArrayList<>(items.size());
+            for (String item : items) {
+                if (!pending.remove(item)) {
+                    remaining.add(item);
+                }
+            }
+            rewrite(context, remaining);
+        } catch (IOException e) {
+            Log.e(TAG, "remove: failed to rewrite queue", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static File get_file(@NotNull Context context) {
+        return new File(context.getApplicationContext().getFilesDir(), QUEUE_FILE_NAME);
+    }
+
+    private static void append(Context context, List<String> items) throws IOException {
+        FileOutputStream file_stream = new FileOutputStream(get_file(context), true);
+        try {
+            DataOutputStream output = new DataOutputStream(file_stream);
+            for (String item : items) {
+                byte[] bytes = item.getBytes(UTF_8);
+                output.writeInt(bytes.length);
+                output.write(bytes);
+            }
+            output.flush();
+            file_stream.getFD().sync();
+        } finally {
+            file_stream.close();
+        }
+    }
+
+    private static void rewrite(Context context, List<String> items) throws IOException {
+        File file = get_file(context);
+        File temp_file = new File(file.getPath() + ".tmp");
+        FileOutputStream file_stream = new FileOutputStream(temp_file, false);
+        try {
+            DataOutputStream output = new DataOutputStream(file_stream);
+            for (String item : items) {
+                byte[] bytes = item.getBytes(UTF_8);
+                output.writeInt(bytes.length);
+                output.write(bytes);
+            }
+            output.flush();
+            file_stream.getFD().sync();
+        } finally {
+            file_stream.close();
+        }
+        if (!temp_file.renameTo(file)) {
+            throw new IOException("Unable to replace " + file.getName());
+        }
+    }
+
+    private static ArrayList<String> read_file(Context context) {
+        ArrayList<String> items = new ArrayList<>();
+        File file = get_file(context);
+        if (!file.exists()) {
+            return items;
+        }
+        long valid_length = 0;
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            while (true) {
+                int length;
+                try {
+                    length = input.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length < 0 || valid_length + 4 + length > file.length()) {
+                    break;
+                }
+                byte[] bytes = new byte[length];
+                input.readFully(bytes);
+                items.add(new String(bytes, UTF_8));
+                valid_length += 4 + length;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "read_file: failed to read queue", e);
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        if (valid_length != file.length()) {
+            // A process died in the middle of an append; drop the torn tail so later appends stay aligned.
+            Log.w(TAG, "read_file: truncating torn record at " + valid_length);
+            truncate(file, valid_length);
+        }
+        return items;
+    }
+
+    private static void truncate(File file, long length) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(length);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the list kept by earlier versions into the queue file. The list is deleted through
+     * {@link PaperCompat#update}, which persists before returning, so the caller's lock is still
+     * held when the other processes can see it gone and none of them imports it again.
+     */
+    private static void migrate_legacy_list(Context context) {
+        if (legacy_checked) {
+            return;
+        }
+        legacy_checked = true;
+        PaperCompat.init(context);
+        if (!PaperCompat.book().contains(PaperKey.LEGACY_RESEND_LIST)) {
+            return;
+        }
+        PaperCompat.book().update(PaperKey.LEGACY_RESEND_LIST, legacy_list -> {
+            try {
+                append(context, legacy_list);
+                Log.i(TAG, "Migrated " + legacy_list.size() + " legacy resend entries.");
+                return null;
+            } catch (IOException e) {
+                Log.e(TAG, "migrate_legacy_list: failed", e);
+                legacy_checked = false;
+                return legacy_list;
+            }
+        });
+    }
+}
@@ -7,6 +7,8 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.os.FileObserver;
 import android.os.IBinder;
 import android.util.Log;
 
@@ -29,22 +31,21 @@ public class resend_service extends Service {
     Context context;
     String request_uri;
     stop_notify_receiver receiver;
-    static ArrayList<String> resend_list;
-    final String table_name = "resend_list";
+    FileObserver queue_observer;
+    final Object work_signal = new Object();
+    private static final long NETWORK_WAIT_MILLIS = 30000;
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        resend_list = PaperCompat.book().read(table_name, new ArrayList<>());
+        notify_work();
         Notification notification = public_func.get_notification_obj(context, getString(R.string.failed_resend));
         startForeground(public_func.RESEND_SERVICE_NOTIFY_ID, notification);
         return START_NOT_STICKY;
     }
 
-    private void network_progress_handle(String message, String chat_id, OkHttpClient okhttp_client) {
-        message_json request_body = new message_json();
-        request_body.chat_id = chat_id;
-        request_body.text = message;
-        if (message.contains("<code>") && message.contains("</code>")) {
+    private boolean network_progress_handle(String message, String chat_id, OkHttpClient okhttp_client) {
+        message_json request_body = resend_queue.to_request(message, chat_id);
+        if (request_body.text.contains("<code>") && request_body.text.contains("</code>")) {
             request_body.parse_mode = "html";
         }
         String request_body_json = new Gson().toJson(request_body);
@@ -53,13 +54,16 @@ public class resend_service extends Service {
         Call call = okhttp_client.newCall(request_obj);
         try {
             Response response = call.execute();
-            if (response.code() == 200) {
-                ArrayList<String> resend_list_local = PaperCompat.book().read(table_name, new ArrayList<>());
-                resend_list_local.remove(message);
-                PaperCompat.book().write(table_name, resend_list_local);
-            }
+            return response.code() == 200;
         } catch (IOException e) {
             e.printStackTrace();
+            return false;
+        }
+    }
+
+    private void notify_work() {
+        synchronized (work_signal) {
+            work_signal.notifyAll();
         }
     }
 
@@ -70,28 +74,52 @@ public class resend_service extends Service {
         PaperCompat.init(context);
         IntentFilter filter = new IntentFilter();
         filter.addAction(public_func.BROADCAST_STOP_SERVICE);
+        filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
         receiver = new stop_notify_receiver();
         registerReceiver(receiver, filter);
+        // Other processes append to the queue file; wake the worker instead of polling it.
+        queue_observer = new FileObserver(context.getFilesDir().getPath(), FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO) {
+            @Override
+            public void onEvent(int event, @Nullable String path) {
+                if (resend_queue.QUEUE_FILE_NAME.equals(path)) {
+                    notify_work();
+                }
+            }
+        };
+        queue_observer.startWatching();
         SharedPreferences sharedPreferences = context.getSharedPreferences("data", MODE_PRIVATE);
         request_uri = public_func.get_url(sharedPreferences.getString("bot_token", ""), "SendMessage");
         new Thread(() -> {
-            resend_list = PaperCompat.book().read(table_name, new ArrayList<>());
             while (true) {
-                if (public_func.check_network_status(context)) {
-                    ArrayList<String> send_list = resend_list;
-                    OkHttpClient okhttp_client = public_func.get_okhttp_obj(sharedPreferences.getBoolean("doh_switch", true));
-                    for (String item : send_list) {
-                        network_progress_handle(item, sharedPreferences.getString("chat_id", ""), okhttp_client);
+                if (!public_func.check_network_status(context)) {
+                    synchronized (work_signal) {
+                        try {
+                            work_signal.wait(NETWORK_WAIT_MILLIS);
+                        } catch (InterruptedException e) {
+                            e.printStackTrace();
+                        }
                     }
-                    if (resend_list == send_list) {
-                        break;
+                    continue;
+                }
+                ArrayList<String> send_list = resend_queue.read_all(context);
+                if (send_list.isEmpty()) {
+                    break;
+                }
+                OkHttpClient okhttp_client = public_func.get_okhttp_obj(sharedPreferences.getBoolean("doh_switch", true));
+                ArrayList<String> sent_list = new ArrayList<>();
+                for (String item : send_list) {
+                    if (network_progress_handle(item, sharedPreferences.getString("chat_id", ""), okhttp_client)) {
+                        sent_list.add(item);
                     }
                 }
-                try {
-                    //noinspection BusyWait
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+                resend_queue.remove(context, sent_list);
+                // Failed items stay queued for the next start; only loop again for work added during this pass.
+                ArrayList<String> remaining = resend_queue.read_all(context);
+                for (String item : send_list) {
+                    remaining.remove(item);
+                }
+                if (remaining.isEmpty()) {
+                    break;
                 }
             }
             public_func.write_log(context, "The resend failure message is complete.");
@@ -101,6 +129,7 @@ public class resend_service extends Service {
 
     @Override
     public void onDestroy() {
+        queue_observer.stopWatching();
         stopForeground(true);
         unregisterReceiver(receiver);
         super.onDestroy();
@@ -115,9 +144,14 @@ public class resend_service extends Service {
     class stop_notify_receiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context context, Intent intent) {
-            if (Objects.requireNonNull(intent.getAction()).equals(public_func.BROADCAST_STOP_SERVICE)) {
-                Log.i("resend_loop", "Received stop signal, quitting now...");
-                stopSelf();
+            switch (Objects.requireNonNull(intent.getAction())) {
+                case public_func.BROADCAST_STOP_SERVICE:
+                    Log.i("resend_loop", "Received stop signal, quitting now...");
+                    stopSelf();
+                    break;
+                case ConnectivityManager.CONNECTIVITY_ACTION:
+                    notify_work();
+                    break;
             }
         }
     }
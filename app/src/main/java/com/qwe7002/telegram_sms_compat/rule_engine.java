@@ -0,0 +1,443 @@
+package com.qwe7002.telegram_sms_compat;
+
+import android.content.Context;
+
+import com.github.sumimakito.codeauxlib.AhoCorasick;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * User-defined routing rules for incoming messages.
+ * <p>
+ * A rule has one condition and one action. Conditions: {@code sender} matches the sender address,
+ * exactly or by prefix when the value ends with {@code *} (e.g. {@code 1069*}); {@code keyword}
+ * matches any of the {@code ;}-separated keywords in the text; {@code regex} matches a regular
+ * expression anywhere in the text; {@code trusted} matches messages from the trusted number.
+ * Actions: {@code drop}, {@code spam} (store in the spam list), {@code forward} (send to the chat
+ * in {@code target} instead of the default one), {@code priority} (skip the keyword blacklist)
+ * and {@code silent} (send without a notification).
+ * <p>
+ * The enabled rules are compiled once into a sender prefix trie, one keyword automaton and
+ * precompiled patterns, and {@link #evaluate} checks all of them in one pass over the sender and
+ * the text, returning the matching rules as a bit mask. Evaluation allocates nothing. Like
+ * {@link keyword_filter}, the engine is rebuilt only when the stored rules change.
+ */
+class rule_engine {
+    static final int MAX_RULES = 64;
+    static final int ACTION_DROP = 1;
+    static final int ACTION_SPAM = 1 << 1;
+    static final int ACTION_FORWARD = 1 << 2;
+    static final int ACTION_PRIORITY = 1 << 3;
+    static final int ACTION_SILENT = 1 << 4;
+    private static final List<String> CONDITIONS = Arrays.asList("sender", "keyword", "regex", "trusted");
+    private static final List<String> ACTIONS = Arrays.asList("drop", "spam", "forward", "priority", "silent");
+
+    static final class rule {
+        final String name;
+        final String condition;
+        final String value;
+        final String action;
+        final String target;
+        final boolean enabled;
+
+        rule(String name, String condition, String value, String action, String target, boolean enabled) {
+            this.name = name;
+            this.condition = condition;
+            this.value = value;
+            this.action = action;
+            this.target = target;
+            this.enabled = enabled;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof rule)) {
+                return false;
+            }
+            rule item = (rule) other;
+            return enabled == item.enabled && equal(name, item.name) && equal(condition, item.condition)
+                    && equal(value, item.value) && equal(action, item.action) && equal(target, item.target);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(new Object[]{name, condition, value, action, target, enabled});
+        }
+
+        private static boolean equal(String first, String second) {
+            return first == null ? second == null : first.equals(second);
+        }
+    }
+
+    static final PaperKey<ArrayList<rule>> RULES = new PaperKey<>("sms_rules", new PaperCodec<ArrayList<rule>>() {
+        @Override
+        public String encode(ArrayList<rule> value) {
+            PaperCodecs.RecordWriter writer = new PaperCodecs.RecordWriter(value.size() * 6);
+            for (rule item : value) {
+                writer.writeString(item.name).writeString(item.condition).writeString(item.value)
+                        .writeString(item.action).writeString(item.target).writeBoolean(item.enabled);
+            }
+            return writer.toString();
+        }
+
+        @Override
+        public ArrayList<rule> decode(String raw) {
+            ArrayList<rule> result = new ArrayList<>();
+            PaperCodecs.RecordReader reader = new PaperCodecs.RecordReader(raw);
+            while (reader.hasNext()) {
+                result.add(new rule(reader.readString(), reader.readString(), reader.readString(),
+                        reader.readString(), reader.readString(), reader.readBoolean()));
+            }
+            return result;
+        }
+
+        @Override
+        public ArrayList<rule> copy(ArrayList<rule> value) {
+            return new ArrayList<>(value);
+        }
+    }, new ArrayList<rule>());
+
+    private static rule_engine compiled;
+    private static ArrayList<rule> compiled_source;
+    private static long rebuild_count = 0;
+
+    private final ArrayList<rule> rules;
+    private final int[] actions;
+    private final long trusted_mask;
+    // Sender trie; transitions of node n are trie_chars/trie_targets[trie_start[n] until trie_start[n + 1]].
+    private final int[] trie_start;
+    private final char[] trie_chars;
+    private final int[] trie_targets;
+    private final long[] trie_prefix_masks;
+    private final long[] trie_exact_masks;
+    private final keyword_automaton keywords;
+    private final long[] keyword_masks;
+    private final Pattern[] patterns;
+    private final long[] pattern_masks;
+    private final ThreadLocal<Matcher[]> matchers;
+    private final ThreadLocal<keyword_scan> keyword_scans;
+    private final AtomicLongArray hits;
+    private final AtomicLong evaluations = new AtomicLong();
+    private final AtomicLong evaluation_nanos = new AtomicLong();
+
+    private static final class keyword_scan implements AhoCorasick.HitListener {
+        private final long[] keyword_masks;
+        long mask;
+
+        keyword_scan(long[] keyword_masks) {
+            this.keyword_masks = keyword_masks;
+        }
+
+        @Override
+        public boolean onHit(int keyword, int start, int end) {
+            mask |= keyword_masks[keyword];
+            return true;
+        }
+    }
+
+    private rule_engine(@NotNull List<rule> rules) {
+        if (rules.size() > MAX_RULES) {
+            throw new IllegalArgumentException("At most " + MAX_RULES + " rules are supported");
+        }
+        this.rules = new ArrayList<>(rules);
+        actions = new int[rules.size()];
+        hits = new AtomicLongArray(rules.size());
+        long trusted = 0;
+        ArrayList<TreeMap<Character, Integer>> trie = new ArrayList<>();
+        ArrayList<long[]> trie_masks = new ArrayList<>();
+        trie.add(new TreeMap<Character, Integer>());
+        trie_masks.add(new long[2]);
+        ArrayList<String> keyword_list = new ArrayList<>();
+        ArrayList<Long> keyword_mask_list = new ArrayList<>();
+        ArrayList<Pattern> pattern_list = new ArrayList<>();
+        ArrayList<Long> pattern_mask_list = new ArrayList<>();
+        for (int index = 0; index < rules.size(); ++index) {
+            rule item = rules.get(index);
+            long bit = 1L << index;
+            actions[index] = parse_action(item);
+            if (!CONDITIONS.contains(item.condition)) {
+                throw new IllegalArgumentException("Rule " + item.name + ": unknown condition " + item.condition);
+            }
+            String value = item.value == null ? "" : item.value.trim();
+            if (!item.condition.equals("trusted") && value.isEmpty()) {
+                throw new IllegalArgumentException("Rule " + item.name + ": missing value");
+            }
+            switch (item.condition) {
+                case "sender":
+                    boolean prefix = value.endsWith("*");
+                    String address = normalize_address(prefix ? value.substring(0, value.length() - 1) : value);
+                    int node = 0;
+                    for (int i = 0; i < address.length(); ++i) {
+                        Integer next = trie.get(node).get(address.charAt(i));
+                        if (next == null) {
+                            next = trie.size();
+                            trie.add(new TreeMap<Character, Integer>());
+                            trie_masks.add(new long[2]);
+                            trie.get(node).put(address.charAt(i), next);
+                        }
+                        node = next;
+                    }
+                    if (item.enabled) {
+                        trie_masks.get(node)[prefix ? 0 : 1] |= bit;
+                    }
+                    break;
+                case "keyword":
+                    for (String keyword : value.split(";")) {
+                        String trimmed = keyword.trim();
+                        if (!trimmed.isEmpty() && item.enabled) {
+                            keyword_list.add(trimmed);
+                            keyword_mask_list.add(bit);
+                        }
+                    }
+                    break;
+                case "regex":
+                    Pattern pattern;
+                    try {
+                        pattern = Pattern.compile(value, Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+                    } catch (PatternSyntaxException e) {
+                        throw new IllegalArgumentException("Rule " + item.name + ": " + e.getDescription(), e);
+                    }
+                    if (item.enabled) {
+                        pattern_list.add(pattern);
+                        pattern_mask_list.add(bit);
+                    }
+                    break;
+                default:
+                    if (item.enabled) {
+                        trusted |= bit;
+                    }
+                    break;
+            }
+        }
+        trusted_mask = trusted;
+
+        trie_start = new int[trie.size() + 1];
+        for (int node = 0; node < trie.size(); ++node) {
+            trie_start[node + 1] = trie_start[node] + trie.get(node).size();
+        }
+        trie_chars = new char[trie_start[trie.size()]];
+        trie_targets = new int[trie_start[trie.size()]];
+        trie_prefix_masks = new long[trie.size()];
+        trie_exact_masks = new long[trie.size()];
+        for (int node = 0; node < trie.size(); ++node) {
+            int edge = trie_start[node];
+            for (Map.Entry<Character, Integer> entry : trie.get(node).entrySet()) {
+                trie_chars[edge] = entry.getKey();
+                trie_targets[edge] = entry.getValue();
+                ++edge;
+            }
+            trie_prefix_masks[node] = trie_masks.get(node)[0];
+            trie_exact_masks[node] = trie_masks.get(node)[1];
+        }
+
+        keywords = new keyword_automaton(keyword_list);
+        keyword_masks = new long[keyword_mask_list.size()];
+        for (int i = 0; i < keyword_masks.length; ++i) {
+            keyword_masks[i] = keyword_mask_list.get(i);
+        }
+        patterns = pattern_list.toArray(new Pattern[0]);
+        pattern_masks = new long[pattern_mask_list.size()];
+        for (int i = 0; i < pattern_masks.length; ++i) {
+            pattern_masks[i] = pattern_mask_list.get(i);
+        }
+        matchers = new ThreadLocal<Matcher[]>() {
+            @Override
+            protected Matcher[] initialValue() {
+                Matcher[] result = new Matcher[patterns.length];
+                for (int i = 0; i < result.length; ++i) {
+                    result[i] = patterns[i].matcher("");
+                }
+                return result;
+            }
+        };
+        keyword_scans = new ThreadLocal<keyword_scan>() {
+            @Override
+            protected keyword_scan initialValue() {
+                return new keyword_scan(keyword_masks);
+            }
+        };
+    }
+
+    @NotNull
+    static synchronized rule_engine get(@NotNull Context context) {
+        PaperCompat.init(context);
+        ArrayList<rule> source = PaperCompat.book().read(RULES);
+        if (compiled == null || !source.equals(compiled_source)) {
+            rule_engine engine;
+            try {
+                engine = new rule_engine(source);
+            } catch (IllegalArgumentException e) {
+                // Stored rules are validated by set_rules; this only guards against older formats.
+                public_func.write_log(context, "Ignoring invalid rules: " + e.getMessage());
+                engine = new rule_engine(new ArrayList<rule>());
+            }
+            compiled = engine;
+            compiled_source = source;
+            ++rebuild_count;
+        }
+        return compiled;
+    }
+
+    /**
+     * Stores a new rule list after compiling it once.
+     *
+     * @throws IllegalArgumentException when a rule is invalid or there are too many rules.
+     */
+    static void set_rules(@NotNull Context context, @NotNull List<rule> rules) {
+        new rule_engine(rules);
+        PaperCompat.init(context);
+        PaperCompat.book().write(RULES, new ArrayList<>(rules));
+    }
+
+    /**
+     * @return a bit mask of the rules matching the message; bit i is rule i.
+     */
+    long evaluate(@NotNull String sender, @NotNull String body, boolean trusted) {
+        long start = System.nanoTime();
+        long mask = trusted ? trusted_mask : 0;
+        int node = 0;
+        mask |= trie_prefix_masks[0];
+        for (int i = 0; i < sender.length() && node >= 0; ++i) {
+            char c = sender.charAt(i);
+            if (!Character.isLetterOrDigit(c)) {
+                continue;
+            }
+            node = trie_transition(node, Character.toLowerCase(c));
+            if (node >= 0) {
+                mask |= trie_prefix_masks[node];
+            }
+        }
+        if (node >= 0) {
+            mask |= trie_exact_masks[node];
+        }
+        if (keyword_masks.length != 0) {
+            keyword_scan scan = keyword_scans.get();
+            scan.mask = 0;
+            keywords.scan(body, scan);
+            mask |= scan.mask;
+        }
+        if (patterns.length != 0) {
+            Matcher[] matcher_list = matchers.get();
+            for (int i = 0; i < matcher_list.length; ++i) {
+                if ((mask & pattern_masks[i]) == 0 && matcher_list[i].reset(body).find()) {
+                    mask |= pattern_masks[i];
+                }
+            }
+            for (Matcher matcher : matcher_list) {
+                matcher.reset("");
+            }
+        }
+        for (long remaining = mask; remaining != 0; remaining &= remaining - 1) {
+            hits.incrementAndGet(Long.numberOfTrailingZeros(remaining));
+        }
+        evaluations.incrementAndGet();
+        evaluation_nanos.addAndGet(System.nanoTime() - start);
+        return mask;
+    }
+
+    /**
+     * Combines the actions of the matching rules in rule order. Drop and spam end the list, so
+     * a later rule cannot undo them.
+     *
+     * @return ACTION_* flags.
+     */
+    int decide(long mask) {
+        int result = 0;
+        for (long remaining = mask; remaining != 0; remaining &= remaining - 1) {
+            int action = actions[Long.numberOfTrailingZeros(remaining)];
+            result |= action;
+            if ((action & (ACTION_DROP | ACTION_SPAM)) != 0) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the target chat of the first matching forward rule, or null.
+     */
+    @Nullable
+    String get_forward_chat(long mask) {
+        for (long remaining = mask; remaining != 0; remaining &= remaining - 1) {
+            int index = Long.numberOfTrailingZeros(remaining);
+            if (actions[index] == ACTION_FORWARD) {
+                return rules.get(index).target.trim();
+            }
+        }
+        return null;
+    }
+
+    @NotNull
+    static Map<String, Object> get_stats(@NotNull Context context) {
+        rule_engine engine = get(context);
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("rules", engine.rules.size());
+        synchronized (rule_engine.class) {
+            stats.put("rebuilds", rebuild_count);
+        }
+        long count = engine.evaluations.get();
+        stats.put("evaluations", count);
+        stats.put("avgEvaluateMicros", count == 0 ? 0 : engine.evaluation_nanos.get() / count / 1000.0);
+        Map<String, Long> rule_hits = new LinkedHashMap<>();
+        for (int i = 0; i < engine.rules.size(); ++i) {
+            rule_hits.put(i + ":" + engine.rules.get(i).name, engine.hits.get(i));
+        }
+        stats.put("hits", rule_hits);
+        return stats;
+    }
+
+    private static int parse_action(rule item) {
+        int index = ACTIONS.indexOf(item.action);
+        if (index < 0) {
+            throw new IllegalArgumentException("Rule " + item.name + ": unknown action " + item.action);
+        }
+        if (index == 2 && (item.target == null || item.target.trim().isEmpty())) {
+            throw new IllegalArgumentException("Rule " + item.name + ": forward needs a target chat");
+        }
+        return 1 << index;
+    }
+
+    /**
+     * Keeps letters and digits only, so "+86 1069-..." and "86106..." are compared the same way.
+     */
+    private static String normalize_address(String address) {
+        StringBuilder result = new StringBuilder(address.length());
+        for (int i = 0; i < address.length(); ++i) {
+            char c = address.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                result.append(Character.toLowerCase(c));
+            }
+        }
+        return result.toString();
+    }
+
+    private int trie_transition(int node, char c) {
+        int low = trie_start[node];
+        int high = trie_start[node + 1] - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            char value = trie_chars[middle];
+            if (value < c) {
+                low = middle + 1;
+            } else if (value > c) {
+                high = middle - 1;
+            } else {
+                return trie_targets[middle];
+            }
+        }
+        return -1;
+    }
+}
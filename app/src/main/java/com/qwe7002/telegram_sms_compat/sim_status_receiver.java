@@ -64,6 +64,8 @@ public class sim_status_receiver extends BroadcastReceiver {
         message_json request_body = new message_json();
         request_body.chat_id = chat_id;
         request_body.text = message;
+        final outbox outbox_log = outbox.get(context);
+        final long outbox_id = outbox_log.append(request_body.text);
         String request_body_json = new Gson().toJson(request_body);
         RequestBody body = RequestBody.create(public_func.JSON, request_body_json);
         OkHttpClient okhttp_client = public_func.get_okhttp_obj(sharedPreferences.getBoolean("doh_switch", true));
@@ -73,20 +75,29 @@ public class sim_status_receiver extends BroadcastReceiver {
         call.enqueue(new Callback() {
             @Override
             public void onFailure(@NonNull Call call, @NonNull IOException e) {
-                e.printStackTrace();
-                public_func.write_log(context, error_head + e.getMessage());
-                public_func.add_resend_loop(context, request_body.text);
+                try {
+                    e.printStackTrace();
+                    public_func.write_log(context, error_head + e.getMessage());
+                    public_func.add_resend_loop(context, request_body.text);
+                } finally {
+                    outbox_log.ack(outbox_id);
+                }
             }
 
             @Override
             public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
-                if (response.code() != 200) {
-                    assert response.body() != null;
-                    public_func.write_log(context, error_head + response.code() + " " + response.body().string());
-                    public_func.add_resend_loop(context, request_body.text);
+                try {
+                    if (response.code() != 200) {
+                        public_func.add_resend_loop(context, request_body.text);
+                        assert response.body() != null;
+                        public_func.write_log(context, error_head + response.code() + " " + response.body().string());
+                    }
+                } finally {
+                    outbox_log.ack(outbox_id);
                 }
             }
         });
+        outbox_log.finish_when_durable(outbox_id, goAsync());
     }
 
 }
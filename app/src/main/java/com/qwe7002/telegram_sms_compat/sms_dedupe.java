@@ -0,0 +1,143 @@
+package com.qwe7002.telegram_sms_compat;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the last {@link #CAPACITY} incoming SMS as 64-bit fingerprints of sender, SMSC
+ * timestamp and body, so the same message delivered twice (SMS_DELIVER plus SMS_RECEIVED on some
+ * ROMs, or a re-broadcast after a reboot) is forwarded only once. Entries older than
+ * {@link #WINDOW_MILLIS} are ignored.
+ * <p>
+ * The ring lives in a small file that is updated in place, one slot per message, so it survives
+ * restarts without rewriting the whole index.
+ */
+class sms_dedupe {
+    private static final String TAG = "sms_dedupe";
+    private static final int CAPACITY = 256;
+    private static final long WINDOW_MILLIS = 24 * 3600 * 1000L;
+    private static final int VERSION = 1;
+    // version, next slot, suppressed count
+    private static final int HEADER_BYTES = 4 + 4 + 8;
+    private static final int SLOT_BYTES = 8 + 8;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static sms_dedupe instance;
+
+    private final long[] fingerprints = new long[CAPACITY];
+    private final long[] seen_at = new long[CAPACITY];
+    private RandomAccessFile file;
+    private int next_slot = 0;
+    private long suppressed = 0;
+    private long checked = 0;
+
+    private sms_dedupe(Context context) {
+        File path = new File(context.getFilesDir(), "sms_dedupe.bin");
+        try {
+            file = new RandomAccessFile(path, "rw");
+            if (file.length() == HEADER_BYTES + CAPACITY * SLOT_BYTES && file.readInt() == VERSION) {
+                next_slot = file.readInt();
+                suppressed = file.readLong();
+                for (int i = 0; i < CAPACITY; ++i) {
+                    fingerprints[i] = file.readLong();
+                    seen_at[i] = file.readLong();
+                }
+                if (next_slot < 0 || next_slot >= CAPACITY) {
+                    next_slot = 0;
+                }
+            } else {
+                file.setLength(0);
+                file.setLength(HEADER_BYTES + CAPACITY * SLOT_BYTES);
+                write_header();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open the dedupe index, duplicates are only detected until restart", e);
+            file = null;
+        }
+    }
+
+    @NotNull
+    static synchronized sms_dedupe get(@NotNull Context context) {
+        if (instance == null) {
+            instance = new sms_dedupe(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Records the message and reports whether it was already seen within the window.
+     */
+    synchronized boolean is_duplicate(@NotNull String sender, long timestamp, @NotNull String body) {
+        long fingerprint = fingerprint(sender, timestamp, body);
+        long now = System.currentTimeMillis();
+        ++checked;
+        for (int i = 0; i < CAPACITY; ++i) {
+            if (fingerprints[i] == fingerprint && seen_at[i] != 0 && now - seen_at[i] < WINDOW_MILLIS) {
+                ++suppressed;
+                try {
+                    if (file != null) {
+                        file.seek(8);
+                        file.writeLong(suppressed);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to update the dedupe index", e);
+                }
+                return true;
+            }
+        }
+        int slot = next_slot;
+        fingerprints[slot] = fingerprint;
+        seen_at[slot] = now;
+        next_slot = (slot + 1) % CAPACITY;
+        try {
+            if (file != null) {
+                file.seek(HEADER_BYTES + (long) slot * SLOT_BYTES);
+                file.writeLong(fingerprint);
+                file.writeLong(now);
+                write_header();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to update the dedupe index", e);
+        }
+        return false;
+    }
+
+    @NotNull
+    synchronized Map<String, Object> get_stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("checked", checked);
+        stats.put("suppressed", suppressed);
+        stats.put("capacity", CAPACITY);
+        return stats;
+    }
+
+    private void write_header() throws IOException {
+        file.seek(0);
+        file.writeInt(VERSION);
+        file.writeInt(next_slot);
+        file.writeLong(suppressed);
+    }
+
+    // FNV-1a over the sender, the timestamp and the body; 0 is kept free to mark empty slots.
+    private static long fingerprint(String sender, long timestamp, String body) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < sender.length(); ++i) {
+            hash = (hash ^ sender.charAt(i)) * FNV_PRIME;
+        }
+        for (int shift = 0; shift < 64; shift += 8) {
+            hash = (hash ^ ((timestamp >>> shift) & 0xff)) * FNV_PRIME;
+        }
+        for (int i = 0; i < body.length(); ++i) {
+            hash = (hash ^ body.charAt(i)) * FNV_PRIME;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+}
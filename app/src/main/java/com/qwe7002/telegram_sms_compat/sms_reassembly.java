@@ -0,0 +1,207 @@
+package com.qwe7002.telegram_sms_compat;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Joins the parts of a concatenated SMS that arrive in separate broadcasts.
+ * <p>
+ * Parts are recognised by the concatenation element of the user data header (IEI 0x00 with an
+ * 8-bit reference, or 0x08 with a 16-bit one) and grouped by sender, reference and part count.
+ * A group is emitted as soon as every part is there, or after {@link #TIMEOUT_SECONDS} with the
+ * parts received so far. At most {@link #MAX_GROUPS} groups and {@link #MAX_BYTES} of PDUs are
+ * held; beyond that the oldest group is emitted early, so nothing is dropped.
+ * <p>
+ * Only 3GPP SMS-DELIVER PDUs are parsed; anything else is passed through as a single message.
+ */
+class sms_reassembly {
+    private static final int TIMEOUT_SECONDS = 60;
+    private static final int MAX_GROUPS = 16;
+    private static final int MAX_BYTES = 32 * 1024;
+
+    interface emitter {
+        void emit(@NotNull byte[][] pdus, @NotNull long[] raw_ids, boolean replayed);
+    }
+
+    private static final class group {
+        final String key;
+        final byte[][] parts;
+        final ArrayList<Long> raw_ids = new ArrayList<>();
+        boolean replayed = true;
+        int received = 0;
+        int bytes = 0;
+
+        group(String key, int count) {
+            this.key = key;
+            this.parts = new byte[count][];
+        }
+    }
+
+    private final emitter target;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "sms_reassembly");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Insertion order, so the first entry is the oldest group.
+    private final LinkedHashMap<String, group> groups = new LinkedHashMap<>();
+    private int held_bytes = 0;
+    private long joined_count = 0;
+    private long timeout_count = 0;
+    private long evicted_count = 0;
+    private long duplicate_parts = 0;
+
+    sms_reassembly(@NotNull emitter target) {
+        this.target = target;
+    }
+
+    /**
+     * Takes the PDUs of one broadcast. They are emitted right away when they form a whole
+     * message; otherwise they are held, and raw_id is emitted together with the joined message.
+     */
+    void offer(@NotNull String sender, @NotNull byte[][] pdus, long raw_id, boolean replayed) {
+        int[] info = pdus.length == 0 ? null : parse_concat(pdus[0]);
+        if (info == null || info[1] <= 1 || info[1] == pdus.length) {
+            target.emit(pdus, new long[]{raw_id}, replayed);
+            return;
+        }
+        ArrayList<group> ready = new ArrayList<>();
+        synchronized (this) {
+            String key = sender + "|" + info[0] + "|" + info[1];
+            group item = groups.get(key);
+            if (item == null) {
+                item = new group(key, info[1]);
+                groups.put(key, item);
+                final group scheduled = item;
+                timer.schedule(() -> expire(scheduled), TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+            item.raw_ids.add(raw_id);
+            item.replayed &= replayed;
+            for (byte[] pdu : pdus) {
+                int[] part = parse_concat(pdu);
+                int sequence = part == null ? -1 : part[2] - 1;
+                if (sequence < 0 || sequence >= item.parts.length || part[0] != info[0]) {
+                    continue;
+                }
+                if (item.parts[sequence] != null) {
+                    ++duplicate_parts;
+                    continue;
+                }
+                item.parts[sequence] = pdu;
+                ++item.received;
+                item.bytes += pdu.length;
+                held_bytes += pdu.length;
+            }
+            if (item.received == item.parts.length) {
+                remove(item);
+                ++joined_count;
+                ready.add(item);
+            }
+            Iterator<group> oldest = groups.values().iterator();
+            while ((groups.size() > MAX_GROUPS || held_bytes > MAX_BYTES) && oldest.hasNext()) {
+                group evicted = oldest.next();
+                oldest.remove();
+                held_bytes -= evicted.bytes;
+                ++evicted_count;
+                ready.add(evicted);
+            }
+        }
+        for (group item : ready) {
+            emit(item);
+        }
+    }
+
+    @NotNull
+    synchronized Map<String, Object> get_stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("pendingGroups", groups.size());
+        stats.put("pendingBytes", held_bytes);
+        stats.put("joined", joined_count);
+        stats.put("timedOut", timeout_count);
+        stats.put("evicted", evicted_count);
+        stats.put("duplicateParts", duplicate_parts);
+        return stats;
+    }
+
+    private void expire(group item) {
+        synchronized (this) {
+            if (groups.get(item.key) != item) {
+                return;
+            }
+            remove(item);
+            ++timeout_count;
+        }
+        emit(item);
+    }
+
+    private void remove(group item) {
+        groups.remove(item.key);
+        held_bytes -= item.bytes;
+    }
+
+    private void emit(group item) {
+        ArrayList<byte[]> pdus = new ArrayList<>(item.parts.length);
+        for (byte[] part : item.parts) {
+            if (part != null) {
+                pdus.add(part);
+            }
+        }
+        long[] raw_ids = new long[item.raw_ids.size()];
+        for (int i = 0; i < raw_ids.length; ++i) {
+            raw_ids[i] = item.raw_ids.get(i);
+        }
+        target.emit(pdus.toArray(new byte[0][]), raw_ids, item.replayed);
+    }
+
+    /**
+     * @return {reference, part count, sequence number} from the user data header of a 3GPP
+     * SMS-DELIVER PDU that starts with the SMSC address, or null if there is none.
+     */
+    @Nullable
+    static int[] parse_concat(@NotNull byte[] pdu) {
+        int offset = 1 + (pdu.length == 0 ? 0 : pdu[0] & 0xff);
+        if (offset >= pdu.length) {
+            return null;
+        }
+        int first_octet = pdu[offset++] & 0xff;
+        // Message type indicator 0 is SMS-DELIVER; bit 6 says a user data header is present.
+        if ((first_octet & 0x03) != 0 || (first_octet & 0x40) == 0 || offset >= pdu.length) {
+            return null;
+        }
+        int address_digits = pdu[offset] & 0xff;
+        // Address length, type of address, semi-octets, then protocol id, coding scheme, timestamp and user data length.
+        offset += 2 + (address_digits + 1) / 2 + 1 + 1 + 7 + 1;
+        if (offset >= pdu.length) {
+            return null;
+        }
+        int header_end = offset + 1 + (pdu[offset] & 0xff);
+        ++offset;
+        if (header_end > pdu.length) {
+            return null;
+        }
+        while (offset + 2 <= header_end) {
+            int element = pdu[offset] & 0xff;
+            int length = pdu[offset + 1] & 0xff;
+            int data = offset + 2;
+            if (data + length > header_end) {
+                return null;
+            }
+            if (element == 0x00 && length == 3) {
+                return new int[]{pdu[data] & 0xff, pdu[data + 1] & 0xff, pdu[data + 2] & 0xff};
+            }
+            if (element == 0x08 && length == 4) {
+                return new int[]{((pdu[data] & 0xff) << 8) | (pdu[data + 1] & 0xff), pdu[data + 2] & 0xff, pdu[data + 3] & 0xff};
+            }
+            offset = data + length;
+        }
+        return null;
+    }
+}
@@ -11,14 +11,18 @@ import android.util.Log;
 
 import androidx.annotation.NonNull;
 
-import com.github.sumimakito.codeauxlib.CodeauxLibPortable;
+import com.github.sumimakito.codeauxlib.RecipePacks;
 import com.google.gson.Gson;
 
+import org.jetbrains.annotations.NotNull;
+
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.Locale;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import okhttp3.Call;
 import okhttp3.Callback;
@@ -29,12 +33,36 @@ import okhttp3.Response;
 
 import static android.content.Context.MODE_PRIVATE;
 
+/**
+ * Receives SMS broadcasts. onReceive only logs the raw PDUs to the {@link outbox} and hands them
+ * to a small worker pool through goAsync(); detection, filtering and the Telegram request run
+ * there. Parts of a long message that arrive in separate broadcasts are joined first by
+ * {@link sms_reassembly}. The raw records are acked once the whole message has been forwarded to
+ * the outbox or dropped, so a process that dies in between replays the PDUs on its next start.
+ */
 public class sms_receiver extends BroadcastReceiver {
-    final static CodeauxLibPortable code_aux_lib = new CodeauxLibPortable();
+    private static final String TAG = "sms_receiver";
+    private static final int WORKER_THREADS = 2;
+    // Broadcasts held open with goAsync() while waiting; beyond this the queue keeps growing, but
+    // each further broadcast is released as soon as its PDUs are on disk.
+    private static final int HELD_BROADCASTS = 64;
+    // Unbounded, so the pipeline never runs on the broadcast thread or the outbox commit thread.
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), runnable -> new Thread(runnable, "sms_worker"));
+    private static final AtomicLong broadcast_count = new AtomicLong();
+    private static final AtomicLong main_thread_nanos = new AtomicLong();
+    private static final AtomicLong max_main_thread_nanos = new AtomicLong();
+    private static final AtomicLong processed_count = new AtomicLong();
+    private static final AtomicLong processing_nanos = new AtomicLong();
+    private static final AtomicLong replay_count = new AtomicLong();
+    private static sms_reassembly reassembly;
+
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
 
     public void onReceive(final Context context, Intent intent) {
-        PaperCompat.init(context);
-        final String TAG = "sms_receiver";
+        long start = System.nanoTime();
         Log.d(TAG, "Receive action: " + intent.getAction());
         Bundle extras = intent.getExtras();
         assert extras != null;
@@ -48,23 +76,137 @@ public class sms_receiver extends BroadcastReceiver {
             Log.i(TAG, "reject: android.provider.Telephony.SMS_RECEIVE.");
             return;
         }
+        Object[] pdu_objects = (Object[]) extras.get("pdus");
+        assert pdu_objects != null;
+        final byte[][] pdus = new byte[pdu_objects.length][];
+        for (int i = 0; i < pdu_objects.length; ++i) {
+            pdus[i] = (byte[]) pdu_objects[i];
+        }
+        final Context app_context = context.getApplicationContext();
+        final outbox outbox_log = outbox.get(app_context);
+        final long raw_id = outbox_log.append_sms(pdus);
+        final PendingResult pending_result = goAsync();
+        if (executor.getQueue().size() >= HELD_BROADCASTS) {
+            // The outbox replays the PDUs if the process dies before the backlog reaches them.
+            outbox_log.finish_when_durable(raw_id, pending_result);
+            executor.execute(() -> handle(app_context, pdus, raw_id, false));
+        } else {
+            executor.execute(() -> {
+                try {
+                    handle(app_context, pdus, raw_id, false);
+                    // A part held for reassembly returns at once; its raw record must be on disk
+                    // before the broadcast ends and the process may be killed.
+                    outbox_log.await_durable(raw_id);
+                } finally {
+                    pending_result.finish();
+                }
+            });
+        }
+        long elapsed = System.nanoTime() - start;
+        broadcast_count.incrementAndGet();
+        main_thread_nanos.addAndGet(elapsed);
+        long max;
+        do {
+            max = max_main_thread_nanos.get();
+        } while (elapsed > max && !max_main_thread_nanos.compareAndSet(max, elapsed));
+    }
+
+    /**
+     * Processes PDUs left unacked in the outbox by a process that died, keyed by the raw record
+     * the outbox has already carried them over to.
+     */
+    static void replay(@NotNull Context context, @NotNull Map<Long, byte[][]> pdu_map) {
+        final Context app_context = context.getApplicationContext();
+        for (final Map.Entry<Long, byte[][]> entry : pdu_map.entrySet()) {
+            replay_count.incrementAndGet();
+            executor.execute(() -> handle(app_context, entry.getValue(), entry.getKey(), true));
+        }
+    }
+
+    @NotNull
+    static Map<String, Object> get_stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long broadcasts = broadcast_count.get();
+        long processed = processed_count.get();
+        stats.put("broadcasts", broadcasts);
+        stats.put("avgMainThreadMicros", broadcasts == 0 ? 0 : main_thread_nanos.get() / broadcasts / 1000.0);
+        stats.put("maxMainThreadMicros", max_main_thread_nanos.get() / 1000.0);
+        stats.put("processed", processed);
+        stats.put("avgProcessingMillis", processed == 0 ? 0 : processing_nanos.get() / processed / 1000000.0);
+        stats.put("queued", executor.getQueue().size());
+        stats.put("replayed", replay_count.get());
+        synchronized (sms_receiver.class) {
+            if (reassembly != null) {
+                stats.put("reassembly", reassembly.get_stats());
+            }
+        }
+        return stats;
+    }
+
+    private static void handle(final Context context, byte[][] pdus, long raw_id, boolean replayed) {
+        String sender = "";
+        if (pdus.length != 0 && sms_reassembly.parse_concat(pdus[0]) != null) {
+            String address = SmsMessage.createFromPdu(pdus[0]).getOriginatingAddress();
+            sender = address == null ? "" : address;
+        }
+        get_reassembly(context).offer(sender, pdus, raw_id, replayed);
+    }
+
+    private static synchronized sms_reassembly get_reassembly(final Context context) {
+        if (reassembly == null) {
+            reassembly = new sms_reassembly((pdus, raw_ids, replayed) -> emit(context, pdus, raw_ids, replayed));
+        }
+        return reassembly;
+    }
+
+    /**
+     * Processes one whole message; the raw records of all its broadcasts are acked together.
+     */
+    private static void emit(Context context, byte[][] pdus, long[] raw_ids, boolean replayed) {
+        long start = System.nanoTime();
+        outbox outbox_log = outbox.get(context);
+        long outbox_id = 0;
+        try {
+            outbox_id = process(context, pdus, replayed);
+        } catch (RuntimeException e) {
+            // Acked anyway, so a message that always fails cannot loop through replays; the
+            // plain text is queued instead so it is not lost.
+            Log.e(TAG, "Failed to process SMS", e);
+            public_func.write_log(context, "Failed to process SMS: " + e.getMessage());
+            forward_plain(context, pdus);
+        } finally {
+            for (long raw_id : raw_ids) {
+                outbox_log.ack(raw_id);
+            }
+        }
+        if (outbox_id != 0) {
+            outbox_log.await_durable(outbox_id);
+        }
+        processed_count.incrementAndGet();
+        processing_nanos.addAndGet(System.nanoTime() - start);
+    }
+
+    /**
+     * @param replayed skips duplicate suppression, since the first attempt already recorded the message.
+     * @return the outbox id of the forwarded text, or 0 when nothing was sent to Telegram.
+     */
+    private static long process(final Context context, byte[][] pdus, boolean replayed) {
+        PaperCompat.init(context);
         final SharedPreferences sharedPreferences = context.getSharedPreferences("data", MODE_PRIVATE);
         if (!sharedPreferences.getBoolean("initialized", false)) {
             Log.i(TAG, "Uninitialized, SMS receiver is deactivated.");
-            return;
+            return 0;
         }
         String bot_token = sharedPreferences.getString("bot_token", "");
         String chat_id = sharedPreferences.getString("chat_id", "");
         String request_uri = public_func.get_url(bot_token, "sendMessage");
-        Object[] pdus = (Object[]) extras.get("pdus");
-        assert pdus != null;
         final SmsMessage[] messages = new SmsMessage[pdus.length];
         for (int i = 0; i < pdus.length; ++i) {
-            messages[i] = SmsMessage.createFromPdu((byte[]) pdus[i]);
+            messages[i] = SmsMessage.createFromPdu(pdus[i]);
         }
         if (messages.length == 0) {
             public_func.write_log(context, "Message length is equal to 0.");
-            return;
+            return 0;
         }
         StringBuilder message_body_builder = new StringBuilder();
         for (SmsMessage item : messages) {
@@ -73,6 +215,10 @@ public class sms_receiver extends BroadcastReceiver {
         final String message_body = message_body_builder.toString();
         final String message_address = messages[0].getOriginatingAddress();
         assert message_address != null;
+        if (!replayed && sms_dedupe.get(context).is_duplicate(message_address, messages[0].getTimestampMillis(), message_body)) {
+            Log.i(TAG, "Duplicate message from " + message_address + " suppressed.");
+            return 0;
+        }
         String trusted_phone_number = sharedPreferences.getString("trusted_phone_number", null);
         boolean is_trusted_phone = false;
         if (trusted_phone_number != null && trusted_phone_number.length() != 0) {
@@ -80,27 +226,18 @@ public class sms_receiver extends BroadcastReceiver {
         }
         final message_json request_body = new message_json();
         request_body.chat_id = chat_id;
-        String message_body_html = message_body;
-        final String message_head = "[" + context.getString(R.string.receive_sms_head) + "]" + "\n" + context.getString(R.string.from) + message_address + "\n" + context.getString(R.string.content);
-        String raw_request_body_text = message_head + message_body;
+        message_template template = message_template.get(context, message_template.SMS);
+        String raw_request_body_text = template.render(message_address, message_body);
+        request_body.text = raw_request_body_text;
         boolean is_verification_code = false;
         if (sharedPreferences.getBoolean("verification_code", false) && !is_trusted_phone) {
-            if (message_body.length() <= 140) {
-                String verification = code_aux_lib.find(message_body);
-                if (verification != null) {
-                    request_body.parse_mode = "html";
-                    message_body_html = message_body
-                            .replace("<", "&lt;")
-                            .replace(">", "&gt;")
-                            .replace("&", "&amp;")
-                            .replace(verification, "<code>" + verification + "</code>");
-                    is_verification_code = true;
-                }
-            } else {
-                public_func.write_log(context, "SMS exceeds 140 characters, no verification code is recognized.");
+            String verification = RecipePacks.get(context).find(message_body);
+            if (verification != null) {
+                request_body.parse_mode = "html";
+                request_body.text = template.render_html(message_address, new message_template.html(mark_code(message_body, verification)));
+                is_verification_code = true;
             }
         }
-        request_body.text = message_head + message_body_html;
 
         if (is_trusted_phone) {
             if (message_body.toLowerCase().equals("restart-service")) {
@@ -122,33 +259,43 @@ public class sms_receiver extends BroadcastReceiver {
                     msg_send_content.append(msg_send_list[i]);
                 }
                 new Thread(() -> public_func.send_sms(context, msg_send_to, msg_send_content.toString())).start();
-                return;
+                return 0;
             }
         }
 
-        if (!is_verification_code && !is_trusted_phone) {
-            ArrayList<String> black_list_array = PaperCompat.book().read("black_keyword_list", new ArrayList<>());
-            for (String black_list_item : black_list_array) {
-                if (black_list_item.isEmpty()) {
-                    continue;
-                }
-                if (message_body.contains(black_list_item)) {
-                    SimpleDateFormat simpleDateFormat = new SimpleDateFormat(context.getString(R.string.time_format), Locale.UK);
-                    String write_message = request_body.text + "\n" + context.getString(R.string.time) + simpleDateFormat.format(new Date(System.currentTimeMillis()));
-                    ArrayList<String> spam_sms_list;
-                    PaperCompat.init(context);
-                    spam_sms_list = PaperCompat.book().read("spam_sms_list", new ArrayList<>());
-                    if (spam_sms_list.size() >= 5) {
-                        spam_sms_list.remove(0);
-                    }
-                    spam_sms_list.add(write_message);
-                    PaperCompat.book().write("spam_sms_list", spam_sms_list);
-                    Log.i(TAG, "Detected message contains blacklist keywords, add spam list");
-                    return;
-                }
+        rule_engine rules = rule_engine.get(context);
+        long matched_rules = rules.evaluate(message_address, message_body, is_trusted_phone);
+        int rule_actions = rules.decide(matched_rules);
+        if ((rule_actions & rule_engine.ACTION_DROP) != 0) {
+            Log.i(TAG, "Message dropped by rule.");
+            return 0;
+        }
+        if ((rule_actions & rule_engine.ACTION_SPAM) != 0) {
+            spam_archive.add(context, request_body.text);
+            Log.i(TAG, "Message moved to the spam list by rule.");
+            return 0;
+        }
+        if ((rule_actions & rule_engine.ACTION_FORWARD) != 0) {
+            request_body.chat_id = rules.get_forward_chat(matched_rules);
+        }
+        if ((rule_actions & rule_engine.ACTION_SILENT) != 0) {
+            request_body.disable_notification = true;
+        }
+
+        if (!is_verification_code && !is_trusted_phone && (rule_actions & rule_engine.ACTION_PRIORITY) == 0) {
+            String black_list_item = keyword_filter.get(context).match(message_body);
+            if (black_list_item != null) {
+                spam_archive.add(context, request_body.text);
+                Log.i(TAG, "Detected message contains blacklist keyword \"" + black_list_item + "\", add spam list");
+                return 0;
             }
         }
 
+        // A routed message is resent to its own chat and never falls back to an SMS.
+        final boolean routed = (rule_actions & (rule_engine.ACTION_FORWARD | rule_engine.ACTION_SILENT)) != 0;
+        final String queue_entry = routed ? resend_queue.routed_entry(request_body) : request_body.text;
+        final outbox outbox_log = outbox.get(context);
+        final long outbox_id = outbox_log.append(queue_entry);
         String request_body_json = new Gson().toJson(request_body);
         RequestBody body = RequestBody.create(public_func.JSON, request_body_json);
         OkHttpClient okhttp_client = public_func.get_okhttp_obj(sharedPreferences.getBoolean("doh_switch", true));
@@ -159,29 +306,81 @@ public class sms_receiver extends BroadcastReceiver {
         call.enqueue(new Callback() {
             @Override
             public void onFailure(@NonNull Call call, @NonNull IOException e) {
-                e.printStackTrace();
-                public_func.write_log(context, error_head + e.getMessage());
-                public_func.send_fallback_sms(context, final_raw_request_body_text);
-                public_func.add_resend_loop(context, request_body.text);
+                try {
+                    e.printStackTrace();
+                    public_func.write_log(context, error_head + e.getMessage());
+                    if (!routed) {
+                        public_func.send_fallback_sms(context, final_raw_request_body_text);
+                    }
+                    public_func.add_resend_loop(context, queue_entry);
+                } finally {
+                    outbox_log.ack(outbox_id);
+                }
             }
 
             @Override
             public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
                 assert response.body() != null;
-                String result = response.body().string();
-                if (response.code() != 200) {
-                    public_func.write_log(context, error_head + response.code() + " " + result);
-                    public_func.send_fallback_sms(context, final_raw_request_body_text);
-                    public_func.add_resend_loop(context, request_body.text);
-                } else {
+                try {
+                    if (response.code() != 200) {
+                        if (!routed) {
+                            public_func.send_fallback_sms(context, final_raw_request_body_text);
+                        }
+                        public_func.add_resend_loop(context, queue_entry);
+                        public_func.write_log(context, error_head + response.code() + " " + response.body().string());
+                        return;
+                    }
+                    String result = response.body().string();
                     if (!public_func.is_phone_number(message_address)) {
                         public_func.write_log(context, "[" + message_address + "] Not a regular phone number.");
                         return;
                     }
-                    public_func.add_message_list(public_func.get_message_id(result), message_address);
+                    public_func.add_message_list(context, public_func.get_message_id(result), message_address);
+                } finally {
+                    outbox_log.ack(outbox_id);
                 }
             }
         });
+        return outbox_id;
+    }
+
+    /**
+     * Queues the message as plain text for the resend service, bypassing detection, rules and
+     * templates, any of which may be what failed.
+     */
+    private static void forward_plain(Context context, byte[][] pdus) {
+        try {
+            String address = "";
+            StringBuilder body = new StringBuilder();
+            for (byte[] pdu : pdus) {
+                SmsMessage message = SmsMessage.createFromPdu(pdu);
+                if (address.isEmpty() && message.getOriginatingAddress() != null) {
+                    address = message.getOriginatingAddress();
+                }
+                body.append(message.getMessageBody());
+            }
+            public_func.add_resend_loop(context, "[" + context.getString(R.string.receive_sms_head) + "]\n" + context.getString(R.string.from) + address + "\n" + context.getString(R.string.content) + body);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to forward SMS as plain text", e);
+            public_func.write_log(context, "Failed to forward SMS as plain text: " + e.getMessage());
+        }
     }
 
+    /**
+     * Escapes the body for HTML and wraps every occurrence of the code in a code tag.
+     */
+    private static String mark_code(String body, String code) {
+        StringBuilder result = new StringBuilder(body.length() + 32);
+        int start = 0;
+        int index;
+        while (!code.isEmpty() && (index = body.indexOf(code, start)) >= 0) {
+            message_template.escape_html(body.subSequence(start, index), result);
+            result.append("<code>");
+            message_template.escape_html(code, result);
+            result.append("</code>");
+            start = index + code.length();
+        }
+        message_template.escape_html(body.subSequence(start, body.length()), result);
+        return result.toString();
+    }
 }
\ No newline at end of file
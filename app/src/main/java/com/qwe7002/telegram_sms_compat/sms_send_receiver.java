@@ -66,6 +66,8 @@ public class sms_send_receiver extends BroadcastReceiver {
                 break;
         }
         request_body.text = extras.getString("message_text") + "\n" + context.getString(R.string.status) + result_status;
+        final outbox outbox_log = outbox.get(context);
+        final long outbox_id = outbox_log.append(request_body.text);
         String request_body_raw = new Gson().toJson(request_body);
         RequestBody body = RequestBody.create(public_func.JSON, request_body_raw);
         OkHttpClient okhttp_client = public_func.get_okhttp_obj(sharedPreferences.getBoolean("doh_switch", true));
@@ -75,21 +77,29 @@ public class sms_send_receiver extends BroadcastReceiver {
         call.enqueue(new Callback() {
             @Override
             public void onFailure(@NotNull Call call, @NotNull IOException e) {
-                e.printStackTrace();
-                public_func.write_log(context, error_head + e.getMessage());
-                public_func.send_fallback_sms(context, request_body.text);
-                public_func.add_resend_loop(context, request_body.text);
+                try {
+                    e.printStackTrace();
+                    public_func.write_log(context, error_head + e.getMessage());
+                    public_func.send_fallback_sms(context, request_body.text);
+                    public_func.add_resend_loop(context, request_body.text);
+                } finally {
+                    outbox_log.ack(outbox_id);
+                }
             }
 
             @Override
             public void onResponse(@NotNull Call call, @NotNull Response response) throws IOException {
-                if (response.code() != 200) {
-                    assert response.body() != null;
-                    public_func.write_log(context, error_head + response.code() + " " + response.body().string());
-                    public_func.add_resend_loop(context, request_body.text);
-
+                try {
+                    if (response.code() != 200) {
+                        public_func.add_resend_loop(context, request_body.text);
+                        assert response.body() != null;
+                        public_func.write_log(context, error_head + response.code() + " " + response.body().string());
+                    }
+                } finally {
+                    outbox_log.ack(outbox_id);
                 }
             }
         });
+        outbox_log.finish_when_durable(outbox_id, goAsync());
     }
 }
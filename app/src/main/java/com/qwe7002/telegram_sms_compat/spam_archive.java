@@ -0,0 +1,291 @@
+package com.qwe7002.telegram_sms_compat;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Messages caught by the spam filters, kept until they are delivered with /getspamsms.
+ * <p>
+ * Entries are numbered and appended to segment files of {@link #SEGMENT_ENTRIES} entries each.
+ * A small state file holds the next number to write, the oldest undelivered number and the write
+ * offset in the newest segment, so an insert is one append plus one 24-byte write. Delivering
+ * entries only moves the oldest number forward and deletes segments that fall behind it. Once
+ * {@link #MAX_SEGMENTS} segments exist, the oldest one is dropped, which keeps the archive at
+ * roughly {@link #SEGMENT_ENTRIES} times {@link #MAX_SEGMENTS} entries.
+ * <p>
+ * The main process writes and the :command process reads, so every access holds a lock on the
+ * state file in addition to the monitor of this class.
+ */
+class spam_archive {
+    private static final String TAG = "spam_archive";
+    private static final int SEGMENT_ENTRIES = 256;
+    private static final int MAX_SEGMENTS = 16;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final class page {
+        final ArrayList<String> items;
+        final int number;
+        final int count;
+        // Entries before this one are delivered once this page is.
+        final long end;
+
+        page(ArrayList<String> items, int number, int count, long end) {
+            this.items = items;
+            this.number = number;
+            this.count = count;
+            this.end = end;
+        }
+    }
+
+    private spam_archive() {
+    }
+
+    private interface state_action<T> {
+        T run(File directory, long[] state) throws IOException;
+    }
+
+    /**
+     * Stores a caught message together with the time it was caught.
+     */
+    static void add(@NotNull Context context, @NotNull String text) {
+        SimpleDateFormat simpleDateFormat = new SimpleDateFormat(context.getString(R.string.time_format), Locale.UK);
+        final String entry = text + "\n" + context.getString(R.string.time) + simpleDateFormat.format(new Date(System.currentTimeMillis()));
+        with_state(context, "add", null, (directory, state) -> {
+            append(directory, state, entry);
+            return null;
+        });
+    }
+
+    static long size(@NotNull Context context) {
+        return with_state(context, "size", 0L, (directory, state) -> state[0] - state[1]);
+    }
+
+    /**
+     * Packs undelivered entries, oldest first, into pages whose joined text stays within
+     * max_chars, and returns the one with the given 1-based number. Its items are empty when it
+     * does not exist, and the result is null when the archive cannot be read. An entry longer
+     * than max_chars gets a page of its own and is cut.
+     */
+    static page read_page(@NotNull Context context, final int number, final int max_chars, @NotNull final String separator) {
+        return with_state(context, "read_page", null, (directory, state) -> {
+            ArrayList<String> current = new ArrayList<>();
+            ArrayList<String> selected = null;
+            long selected_end = state[1];
+            int current_chars = 0;
+            int page_count = 0;
+            long sequence = state[1];
+            while (sequence < state[0]) {
+                long segment = sequence / SEGMENT_ENTRIES;
+                ArrayList<String> entries = read_segment(directory, segment);
+                for (int i = (int) (sequence % SEGMENT_ENTRIES); i < entries.size() && sequence < state[0]; ++i, ++sequence) {
+                    String entry = entries.get(i);
+                    if (entry.length() > max_chars) {
+                        entry = entry.substring(0, max_chars);
+                    }
+                    int added = current.isEmpty() ? entry.length() : separator.length() + entry.length();
+                    if (!current.isEmpty() && current_chars + added > max_chars) {
+                        ++page_count;
+                        current = new ArrayList<>();
+                        current_chars = 0;
+                        added = entry.length();
+                    }
+                    current.add(entry);
+                    current_chars += added;
+                    if (page_count + 1 == number) {
+                        selected = current;
+                        selected_end = sequence + 1;
+                    }
+                }
+                // A segment lost or cut short is skipped rather than read forever.
+                if (sequence < state[0] && sequence / SEGMENT_ENTRIES == segment) {
+                    sequence = (segment + 1) * SEGMENT_ENTRIES;
+                }
+            }
+            if (!current.isEmpty()) {
+                ++page_count;
+            }
+            return new page(selected == null ? new ArrayList<String>() : selected, number, page_count, selected_end);
+        });
+    }
+
+    /**
+     * Marks every entry before end as delivered, in one state write.
+     */
+    static void remove_until(@NotNull Context context, final long end) {
+        with_state(context, "remove_until", null, (directory, state) -> {
+            if (end <= state[1]) {
+                return null;
+            }
+            state[1] = Math.min(end, state[0]);
+            for (long segment = state[1] / SEGMENT_ENTRIES - 1; segment >= 0; --segment) {
+                if (!segment_file(directory, segment).delete()) {
+                    break;
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Runs the action with the state loaded and locked against the other processes, and stores
+     * the state afterwards. Entries left in the legacy list are moved in first.
+     */
+    private static synchronized <T> T with_state(Context context, String name, T fallback, state_action<T> action) {
+        File directory = get_directory(context);
+        RandomAccessFile state_file = null;
+        FileLock lock = null;
+        try {
+            state_file = new RandomAccessFile(new File(directory, "state"), "rw");
+            lock = state_file.getChannel().lock();
+            long[] state = read_state(state_file);
+            migrate_legacy(context, directory, state);
+            T result = action.run(directory, state);
+            write_state(state_file, state);
+            return result;
+        } catch (IOException e) {
+            Log.e(TAG, name + ": failed", e);
+            return fallback;
+        } finally {
+            try {
+                if (lock != null) {
+                    lock.release();
+                }
+                if (state_file != null) {
+                    state_file.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void append(File directory, long[] state, String text) throws IOException {
+        long sequence = state[0];
+        long segment = sequence / SEGMENT_ENTRIES;
+        if (sequence % SEGMENT_ENTRIES == 0) {
+            state[2] = 0;
+            long dropped = segment - MAX_SEGMENTS;
+            if (dropped >= 0) {
+                segment_file(directory, dropped).delete();
+                state[1] = Math.max(state[1], (dropped + 1) * SEGMENT_ENTRIES);
+            }
+        }
+        byte[] bytes = text.getBytes(UTF_8);
+        RandomAccessFile output = new RandomAccessFile(segment_file(directory, segment), "rw");
+        try {
+            // Written at the recorded offset, so a record torn by a crash is simply overwritten.
+            output.seek(state[2]);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+            state[2] = output.getFilePointer();
+            output.setLength(state[2]);
+        } finally {
+            output.close();
+        }
+        state[0] = sequence + 1;
+    }
+
+    private static ArrayList<String> read_segment(File directory, long segment) {
+        ArrayList<String> entries = new ArrayList<>();
+        File file = segment_file(directory, segment);
+        if (!file.exists()) {
+            return entries;
+        }
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            while (true) {
+                byte[] bytes = new byte[input.readInt()];
+                input.readFully(bytes);
+                entries.add(new String(bytes, UTF_8));
+            }
+        } catch (EOFException e) {
+            // End of segment.
+        } catch (IOException | OutOfMemoryError | NegativeArraySizeException e) {
+            Log.e(TAG, "read_segment: failed to read " + file.getName(), e);
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Moves the five-entry list kept by earlier versions into the archive. The list is deleted
+     * through {@link PaperCompat#update}, which persists before returning, so the other process
+     * sees it gone before the state lock is released and never imports it a second time.
+     */
+    private static void migrate_legacy(Context context, final File directory, final long[] state) throws IOException {
+        PaperCompat.init(context);
+        if (!PaperCompat.book().contains(PaperKey.LEGACY_SPAM_SMS_LIST)) {
+            return;
+        }
+        final IOException[] failure = {null};
+        PaperCompat.book().update(PaperKey.LEGACY_SPAM_SMS_LIST, items -> {
+            try {
+                for (String item : items) {
+                    append(directory, state, item);
+                }
+                return null;
+            } catch (IOException e) {
+                failure[0] = e;
+                return items;
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    // next number to write, oldest undelivered number, end offset of the newest segment
+    private static long[] read_state(RandomAccessFile state_file) throws IOException {
+        long[] state = new long[3];
+        if (state_file.length() >= 24) {
+            state_file.seek(0);
+            for (int i = 0; i < state.length; ++i) {
+                state[i] = state_file.readLong();
+            }
+        }
+        return state;
+    }
+
+    private static void write_state(RandomAccessFile state_file, long[] state) throws IOException {
+        state_file.seek(0);
+        for (long value : state) {
+            state_file.writeLong(value);
+        }
+    }
+
+    private static File get_directory(Context context) {
+        File directory = new File(context.getFilesDir(), "spam_archive");
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.w(TAG, "Unable to create " + directory);
+        }
+        return directory;
+    }
+
+    private static File segment_file(File directory, long segment) {
+        return new File(directory, "segment_" + segment + ".log");
+    }
+}
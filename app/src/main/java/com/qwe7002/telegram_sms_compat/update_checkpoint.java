@@ -0,0 +1,137 @@
+package com.qwe7002.telegram_sms_compat;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.TreeSet;
+
+/**
+ * Durable getUpdates offset for chat_command_service.
+ * <p>
+ * The offset only moves past an update after it has been handled. Updates are handled
+ * concurrently, so the offset stops at the lowest update still in flight, both when it is
+ * committed and when it is sent with the next getUpdates; Telegram therefore keeps every update
+ * that has not finished, and re-delivers those already handed over, which {@link #begin} turns
+ * away. The offset is committed in batches: every {@link #COMMIT_BATCH} updates and at the end of each getUpdates response.
+ * Updates that trigger an SMS are recorded as handled before the SMS goes out, so a restart
+ * that replays the uncommitted tail of a batch never sends the same SMS twice.
+ * Both keys belong to the bot token whose hash is stored next to them, so a checkpoint opened
+ * with a different token, whichever screen changed it, starts from scratch, and a service still
+ * running with the old token cannot write into the new one.
+ */
+class update_checkpoint {
+    private static final String TAG = "update_checkpoint";
+    private static final int COMMIT_BATCH = 20;
+    private static final int HANDLED_LIMIT = 200;
+
+    private final PaperCompat book;
+    private final String token_hash;
+    private long committed_offset;
+    private long pending_offset;
+    private long highest_seen = -1;
+    private int uncommitted = 0;
+    private final TreeSet<Long> in_flight = new TreeSet<>();
+
+    update_checkpoint(@NotNull Context context, @NotNull String bot_token) {
+        PaperCompat.init(context);
+        book = PaperCompat.book();
+        token_hash = bot_identity.hash(bot_token);
+        book.transaction(book -> {
+            if (!book.read(PaperKey.UPDATE_TOKEN_HASH).equals(token_hash)) {
+                Log.i(TAG, "update_checkpoint: Bot token changed, resetting the offset.");
+                book.delete(PaperKey.UPDATE_OFFSET);
+                book.delete(PaperKey.HANDLED_UPDATE_IDS);
+                book.write(PaperKey.UPDATE_TOKEN_HASH, token_hash);
+            }
+        });
+        committed_offset = book.read(PaperKey.UPDATE_OFFSET);
+        pending_offset = committed_offset;
+    }
+
+    boolean is_handled(long update_id) {
+        return update_id < committed_offset || book.read(PaperKey.HANDLED_UPDATE_IDS).contains(String.valueOf(update_id));
+    }
+
+    /**
+     * Persists that the update's side effect is about to run. Call before sending an SMS.
+     */
+    void mark_handled(long update_id) {
+        book.transaction(book -> {
+            if (!book.read(PaperKey.UPDATE_TOKEN_HASH).equals(token_hash)) {
+                return;
+            }
+            LinkedHashSet<String> handled = book.read(PaperKey.HANDLED_UPDATE_IDS);
+            handled.add(String.valueOf(update_id));
+            Iterator<String> iterator = handled.iterator();
+            while (handled.size() > HANDLED_LIMIT && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+            book.write(PaperKey.HANDLED_UPDATE_IDS, handled);
+        });
+    }
+
+    /**
+     * @return false when the update was already handed over in this process and has only been
+     * delivered again because an earlier one is still in flight.
+     */
+    synchronized boolean begin(long update_id) {
+        if (update_id <= highest_seen) {
+            return false;
+        }
+        in_flight.add(update_id);
+        highest_seen = update_id;
+        return true;
+    }
+
+    /**
+     * Offset for the next getUpdates call: the lowest update still in flight, or past every
+     * update handed to {@link #begin} when none is.
+     */
+    synchronized long get_request_offset() {
+        return in_flight.isEmpty() ? Math.max(pending_offset, highest_seen + 1) : in_flight.first();
+    }
+
+    /**
+     * Waits up to timeout_millis for the request offset to move, so polling does not spin on
+     * responses that only repeat updates still in flight.
+     */
+    synchronized void await_progress(long timeout_millis) throws InterruptedException {
+        long offset = get_request_offset();
+        long deadline = System.currentTimeMillis() + timeout_millis;
+        long remaining = timeout_millis;
+        while (get_request_offset() == offset && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+    }
+
+    synchronized void complete(long update_id) {
+        in_flight.remove(update_id);
+        long completed_through = in_flight.isEmpty() ? highest_seen + 1 : in_flight.first();
+        pending_offset = Math.max(pending_offset, completed_through);
+        notifyAll();
+        if (++uncommitted >= COMMIT_BATCH) {
+            commit();
+        }
+    }
+
+    synchronized void commit() {
+        if (pending_offset == committed_offset) {
+            return;
+        }
+        final long offset = pending_offset;
+        book.transaction(book -> {
+            if (book.read(PaperKey.UPDATE_TOKEN_HASH).equals(token_hash)) {
+                book.write(PaperKey.UPDATE_OFFSET, Math.max(book.read(PaperKey.UPDATE_OFFSET), offset));
+            }
+        });
+        committed_offset = offset;
+        uncommitted = 0;
+        Log.d(TAG, "commit: offset " + offset);
+    }
+}
@@ -0,0 +1,35 @@
+package com.qwe7002.telegram_sms_compat;
+
+/**
+ * The parts of a Telegram update that chat_command_service uses. Filled by update_reader.
+ */
+class update_json {
+    long update_id;
+    boolean is_channel_post = false;
+    message message;
+
+    static class message {
+        long message_id;
+        String text = "";
+        chat chat;
+        user from;
+        long reply_to_message_id = 0;
+        entity first_entity;
+    }
+
+    static class chat {
+        String id;
+        String type = "";
+    }
+
+    static class user {
+        String id;
+        boolean is_bot = false;
+    }
+
+    static class entity {
+        String type = "";
+        int offset;
+        int length;
+    }
+}
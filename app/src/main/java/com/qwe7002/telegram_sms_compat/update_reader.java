@@ -0,0 +1,180 @@
+package com.qwe7002.telegram_sms_compat;
+
+import com.google.gson.stream.JsonReader;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Set;
+
+/**
+ * Streams a getUpdates response and hands each update over as soon as it is read.
+ * Only the fields in update_json are kept; photos, stickers and every entity after
+ * the first are skipped without being materialised, and so are updates of a type outside
+ * the allowed set, which are reported with a null message.
+ */
+class update_reader {
+    interface update_handler {
+        void on_update(update_json update);
+    }
+
+    private update_reader() {
+    }
+
+    /**
+     * @return the value of "ok" in the response.
+     */
+    static boolean read(Reader source, Set<String> allowed_types, update_handler handler) throws IOException {
+        JsonReader reader = new JsonReader(source);
+        boolean ok = false;
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "ok":
+                        ok = reader.nextBoolean();
+                        break;
+                    case "result":
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            handler.on_update(read_update(reader, allowed_types));
+                        }
+                        reader.endArray();
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+        } finally {
+            reader.close();
+        }
+        return ok;
+    }
+
+    private static update_json read_update(JsonReader reader, Set<String> allowed_types) throws IOException {
+        update_json update = new update_json();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("update_id")) {
+                update.update_id = reader.nextLong();
+            } else if (name.equals("message") && allowed_types.contains(name)) {
+                update.message = read_message(reader, true);
+            } else if (name.equals("channel_post") && allowed_types.contains(name)) {
+                update.is_channel_post = true;
+                update.message = read_message(reader, true);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return update;
+    }
+
+    private static update_json.message read_message(JsonReader reader, boolean read_reply) throws IOException {
+        update_json.message message = new update_json.message();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "message_id":
+                    message.message_id = reader.nextLong();
+                    break;
+                case "text":
+                    message.text = reader.nextString();
+                    break;
+                case "chat":
+                    message.chat = read_chat(reader);
+                    break;
+                case "from":
+                    message.from = read_user(reader);
+                    break;
+                case "reply_to_message":
+                    if (read_reply) {
+                        message.reply_to_message_id = read_message(reader, false).message_id;
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                case "entities":
+                    reader.beginArray();
+                    if (reader.hasNext()) {
+                        message.first_entity = read_entity(reader);
+                    }
+                    while (reader.hasNext()) {
+                        reader.skipValue();
+                    }
+                    reader.endArray();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        return message;
+    }
+
+    private static update_json.chat read_chat(JsonReader reader) throws IOException {
+        update_json.chat chat = new update_json.chat();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "id":
+                    chat.id = reader.nextString();
+                    break;
+                case "type":
+                    chat.type = reader.nextString();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        return chat;
+    }
+
+    private static update_json.user read_user(JsonReader reader) throws IOException {
+        update_json.user user = new update_json.user();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "id":
+                    user.id = reader.nextString();
+                    break;
+                case "is_bot":
+                    user.is_bot = reader.nextBoolean();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        return user;
+    }
+
+    private static update_json.entity read_entity(JsonReader reader) throws IOException {
+        update_json.entity entity = new update_json.entity();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "type":
+                    entity.type = reader.nextString();
+                    break;
+                case "offset":
+                    entity.offset = reader.nextInt();
+                    break;
+                case "length":
+                    entity.length = reader.nextInt();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        return entity;
+    }
+}